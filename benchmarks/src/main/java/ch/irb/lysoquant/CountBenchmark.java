@@ -0,0 +1,92 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.measure.ResultsTable;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * count() on a synthetic label stack, with and without single values and
+ * cargo area, for increasing object density.
+ *
+ * @author Diego Morone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CountBenchmark {
+
+    @Param({"100", "1000"})
+    public int objects;
+
+    @Param({"false", "true"})
+    public boolean display_values;
+
+    @Param({"false", "true"})
+    public boolean display_cargo;
+
+    LysoQuant lq;
+    SyntheticImage image;
+
+    @Setup
+    public void setup() {
+        image = new SyntheticImage();
+        image.width = 1024;
+        image.height = 1024;
+        image.objects = objects;
+        image.generate();
+        lq = image.analyzer();
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        // Single values add an overlay entry per object
+        image.raw.setOverlay(null);
+        lq.summary = new ResultsTable();
+    }
+
+    @Benchmark
+    public ResultsTable count() {
+        lq.count(image.labels, image.raw, "0000-0000", null, 1, image.nChannels, lq.classValues(),
+                lq.minSize, display_values, display_cargo, 500);
+        return lq.summary;
+    }
+}
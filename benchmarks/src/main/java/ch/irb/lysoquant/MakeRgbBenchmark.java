@@ -0,0 +1,83 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.ImagePlus;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Preprocessing: duplicate protein and lysosome channels and merge them to RGB.
+ *
+ * @author Diego Morone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class MakeRgbBenchmark {
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"1", "8"})
+    public int planes;
+
+    @Param({"3", "6"})
+    public int channels;
+
+    LysoQuant lq;
+    SyntheticImage image;
+
+    @Setup
+    public void setup() {
+        image = new SyntheticImage();
+        image.width = size;
+        image.height = size;
+        image.nChannels = channels;
+        image.nFrames = planes;
+        image.generate();
+        lq = image.analyzer();
+    }
+
+    @Benchmark
+    public ImagePlus makeRgb() {
+        return lq.make_rgb(image.ch_protein, image.ch_lyso, image.raw, 1, 1, 1, planes);
+    }
+}
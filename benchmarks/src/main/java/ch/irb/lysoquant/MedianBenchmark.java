@@ -0,0 +1,82 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * getMedian of per-lysosome cargo areas. getMedian sorts its argument, so
+ * each call gets a fresh unsorted copy; copy() measures that overhead alone.
+ *
+ * @author Diego Morone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class MedianBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int n;
+
+    LysoQuant lq;
+    ArrayList<Double> values;
+
+    @Setup
+    public void setup() {
+        lq = new LysoQuant();
+        Random random = new Random(1);
+        values = new ArrayList<Double>(n);
+        for (int i = 0; i < n; i++) {
+            values.add(100 * random.nextDouble());
+        }
+    }
+
+    @Benchmark
+    public ArrayList<Double> copy() {
+        return new ArrayList<Double>(values);
+    }
+
+    @Benchmark
+    public Double median() {
+        return lq.getMedian(new ArrayList<Double>(values));
+    }
+}
@@ -0,0 +1,92 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * make_rgb, stand-in segmentation and count() on a time-lapse, as one run of
+ * the plugin on an image without ROIs.
+ *
+ * @author Diego Morone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PipelineBenchmark {
+
+    @Param({"1", "10"})
+    public int frames;
+
+    @Param({"false", "true"})
+    public boolean display_values;
+
+    LysoQuant lq;
+    SyntheticImage image;
+
+    @Setup
+    public void setup() {
+        image = new SyntheticImage();
+        image.width = 1024;
+        image.height = 1024;
+        image.objects = 300;
+        image.nFrames = frames;
+        image.generate();
+        lq = image.analyzer();
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        image.raw.setOverlay(null);
+        lq.summary = new ResultsTable();
+    }
+
+    @Benchmark
+    public ResultsTable pipeline() {
+        ImagePlus rgb = lq.make_rgb(lq.ch_protein, lq.ch_lyso, image.raw, 1, 1, 1, frames);
+        ImagePlus segmented = StandInSegmentation.segment(rgb, 128);
+        lq.count(segmented, image.raw, "0000-0000", null, 1, image.nChannels, lq.classValues(),
+                lq.minSize, display_values, false, 0);
+        return lq.summary;
+    }
+}
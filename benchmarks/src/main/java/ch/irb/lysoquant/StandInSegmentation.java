@@ -0,0 +1,70 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.*;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+
+/**
+ * Stand-in for the U-Net segmentation, so that the whole pipeline can be
+ * benchmarked without a caffe backend. Thresholds the RGB input built by
+ * make_rgb: green (lysosome) above threshold is Empty, with red (protein)
+ * also above threshold Loaded.
+ *
+ * @author Diego Morone
+ */
+public class StandInSegmentation {
+
+    public static ImagePlus segment(ImagePlus rgb, int threshold) {
+        ImageStack in = rgb.getStack();
+        ImageStack out = new ImageStack(rgb.getWidth(), rgb.getHeight());
+        for (int n = 1; n <= in.getSize(); n++) {
+            int[] pixels = (int[]) ((ColorProcessor) in.getProcessor(n)).getPixels();
+            byte[] labels = new byte[pixels.length];
+            for (int i = 0; i < pixels.length; i++) {
+                int red = (pixels[i] >> 16) & 0xff;
+                int green = (pixels[i] >> 8) & 0xff;
+                if (green > threshold)
+                    labels[i] = (byte) (red > threshold ? 2 : 1);
+            }
+            out.addSlice(in.getSliceLabel(n), new ByteProcessor(rgb.getWidth(), rgb.getHeight(), labels));
+        }
+        ImagePlus segmented = new ImagePlus("LQ_"+rgb.getTitle(), out);
+        segmented.setDimensions(1, rgb.getNSlices(), rgb.getNFrames());
+        segmented.setCalibration(rgb.getCalibration());
+        return segmented;
+    }
+}
@@ -0,0 +1,171 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+/**
+ * Append-only checkpoint journal for batch runs.
+ * Each line records the outcome of one stage (preprocess, segment, count)
+ * for one image and cell, with a pointer to the output of that stage:
+ *
+ *   time  image  cell  stage  status  output
+ *
+ * separated by tabs. Status is "done" or "failed". When a journal is
+ * reopened, the last line for each image/cell/stage wins, so a restarted run
+ * can skip finished stages and retry the failed ones.
+ *
+ * @author Diego Morone
+ */
+public class Journal {
+
+    public static final String PREPROCESS = "preprocess";
+    public static final String SEGMENT = "segment";
+    public static final String COUNT = "count";
+
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    static final String IMAGE_LEVEL = "-"; // cell name for image level stages
+
+    File file;
+    HashMap<String, String> status = new HashMap<String, String>();
+    HashMap<String, String> outputs = new HashMap<String, String>();
+
+    /**
+     * Open a journal, reading back the entries of previous runs if file exists.
+     *
+     * @param file journal file
+     * @throws IOException if the existing journal cannot be read
+     */
+    public Journal(File file) throws IOException {
+        this.file = file;
+        if (!file.exists())
+            return;
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                // Skip lines truncated by a crash while writing
+                if (fields.length < 6)
+                    continue;
+                String key = key(fields[1], fields[2], fields[3]);
+                status.put(key, fields[4]);
+                outputs.put(key, fields[5]);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param image image name
+     * @param cell cell ID, or null for image level stages
+     * @param stage one of PREPROCESS, SEGMENT, COUNT
+     * @return true if the stage finished in a previous or in this run
+     */
+    public synchronized boolean isDone(String image, String cell, String stage) {
+        return DONE.equals(status.get(key(image, cell, stage)));
+    }
+
+    /**
+     * @param image image name
+     * @param cell cell ID, or null for image level stages
+     * @param stage one of PREPROCESS, SEGMENT, COUNT
+     * @return path of the output of a finished stage, or null
+     */
+    public synchronized String output(String image, String cell, String stage) {
+        String key = key(image, cell, stage);
+        return DONE.equals(status.get(key)) ? outputs.get(key) : null;
+    }
+
+    /**
+     * Record a finished stage.
+     *
+     * @param image image name
+     * @param cell cell ID, or null for image level stages
+     * @param stage one of PREPROCESS, SEGMENT, COUNT
+     * @param output path of the stage output
+     * @throws IOException if the journal cannot be written
+     */
+    public void done(String image, String cell, String stage, String output) throws IOException {
+        append(image, cell, stage, DONE, output);
+    }
+
+    /**
+     * Record a failed stage.
+     *
+     * @param image image name
+     * @param cell cell ID, or null for image level stages
+     * @param stage one of PREPROCESS, SEGMENT, COUNT
+     * @param reason short description of the failure
+     * @throws IOException if the journal cannot be written
+     */
+    public void failed(String image, String cell, String stage, String reason) throws IOException {
+        append(image, cell, stage, FAILED, reason);
+    }
+
+    synchronized void append(String image, String cell, String stage, String state, String output) throws IOException {
+        if (cell == null) cell = IMAGE_LEVEL;
+        if (output == null) output = "";
+        output = output.replace('\t', ' ').replace('\n', ' ');
+
+        // Open and close on every entry so that the line is on disk before the next stage starts
+        PrintWriter writer = new PrintWriter(new FileWriter(file, true));
+        try {
+            writer.println(System.currentTimeMillis()+"\t"+image+"\t"+cell+"\t"+stage+"\t"+state+"\t"+output);
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError())
+            throw new IOException("Could not write to journal "+file);
+
+        String key = key(image, cell, stage);
+        status.put(key, state);
+        outputs.put(key, output);
+    }
+
+    static String key(String image, String cell, String stage) {
+        return image+"\t"+(cell == null ? IMAGE_LEVEL : cell)+"\t"+stage;
+    }
+}
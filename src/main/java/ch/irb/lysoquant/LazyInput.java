@@ -0,0 +1,202 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.*;
+import ij.io.FileInfo;
+import ij.io.Opener;
+import ij.plugin.FileInfoVirtualStack;
+import ij.process.ImageProcessor;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Open images from disk without reading all planes.
+ * The image keeps its full C/Z/T dimensions, but planes are read only when
+ * accessed, so preprocessing and measurements touch only ch_lyso, ch_protein
+ * and the measurement channels of the selected slices and frames.
+ * TIFF files are read with ImageJ's own virtual stack; other formats, and
+ * series other than the first, go through the Bio-Formats importer (virtual
+ * stack) when Bio-Formats is installed, as in Fiji.
+ *
+ * @author Diego Morone
+ */
+public class LazyInput {
+
+    static final String BIOFORMATS_READER = "loci.formats.ImageReader";
+
+    /**
+     * Number of series in file. Always 1 if Bio-Formats is not available.
+     *
+     * @param path image file
+     * @return number of series
+     */
+    public static int seriesCount(String path) {
+        if (isImageJTiff(path) || !hasBioFormats())
+            return 1;
+        try {
+            Class<?> clazz = IJ.getClassLoader().loadClass(BIOFORMATS_READER);
+            Object reader = clazz.getDeclaredConstructor().newInstance();
+            Method setId = clazz.getMethod("setId", String.class);
+            Method getSeriesCount = clazz.getMethod("getSeriesCount");
+            Method close = clazz.getMethod("close");
+            try {
+                setId.invoke(reader, path);
+                return (Integer) getSeriesCount.invoke(reader);
+            } finally {
+                close.invoke(reader);
+            }
+        } catch (Exception ex) {
+            IJ.log("LysoQuant: cannot read series of "+path+": "+ex);
+            return 1;
+        }
+    }
+
+    /**
+     * Open one series of an image file, reading planes on demand.
+     *
+     * @param path image file
+     * @param series series index, starting at 0
+     * @return image, or null if it cannot be opened
+     */
+    public static ImagePlus open(String path, int series) {
+        ImagePlus imp = null;
+        if (series == 0 && isImageJTiff(path)) {
+            imp = FileInfoVirtualStack.openVirtual(path);
+        } else if (hasBioFormats()) {
+            // The image opened by the importer, not the current one: the user
+            // may select another image while a background analysis runs
+            int[] before = WindowManager.getIDList();
+            IJ.run("Bio-Formats Importer", "open=["+path+"] color_mode=Default view=Hyperstack"
+                    + " stack_order=XYCZT use_virtual_stack series_"+(series+1));
+            imp = LysoQuant.newImage(before, "");
+            if (imp != null && imp.getWindow() != null)
+                imp.getWindow().setVisible(false);
+        } else if (series == 0) {
+            IJ.log("LysoQuant: Bio-Formats not found, reading all of "+path);
+            return IJ.openImage(path);
+        }
+        if (imp == null || !imp.getStack().isVirtual())
+            return imp;
+
+        int nChannels = imp.getNChannels();
+        int nSlices = imp.getNSlices();
+        int nFrames = imp.getNFrames();
+        boolean hyperstack = imp.isHyperStack();
+        // Keep all channels of one plane, measured together by count()
+        imp.setStack(new CachedStack(imp.getStack(), nChannels), nChannels, nSlices, nFrames);
+        imp.setOpenAsHyperStack(hyperstack);
+        return imp;
+    }
+
+    /**
+     * TIFF files written by ImageJ, or with a single plane. Other TIFF files
+     * (OME-TIFF...) keep their dimensions and series in metadata that only
+     * Bio-Formats reads: as a virtual stack every plane would be a slice.
+     *
+     * @return true if plain ImageJ can open path as a virtual TIFF stack
+     */
+    static boolean isImageJTiff(String path) {
+        if (new Opener().getFileType(path) != Opener.TIFF)
+            return false;
+        FileInfo[] info = Opener.getTiffFileInfo(path);
+        if (info == null || info.length == 0)
+            return false;
+        if (info[0].description != null && info[0].description.startsWith("ImageJ="))
+            return true;
+        return info.length == 1 && info[0].nImages <= 1;
+    }
+
+    static boolean hasBioFormats() {
+        try {
+            IJ.getClassLoader().loadClass(BIOFORMATS_READER);
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Virtual stack keeping the most recently used planes of another virtual
+     * stack in memory. Measuring every object of a plane in every channel
+     * switches channel once per object, so without it each measurement would
+     * read a plane from disk again.
+     */
+    static class CachedStack extends VirtualStack {
+        final ImageStack source;
+        final LinkedHashMap<Integer, ImageProcessor> cache;
+
+        CachedStack(ImageStack source, final int cacheSize) {
+            super(source.getWidth(), source.getHeight(), source.getColorModel(), null);
+            this.source = source;
+            setBitDepth(source.getBitDepth());
+            cache = new LinkedHashMap<Integer, ImageProcessor>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, ImageProcessor> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+
+        @Override
+        public synchronized ImageProcessor getProcessor(int n) {
+            ImageProcessor ip = cache.get(n);
+            if (ip == null) {
+                ip = source.getProcessor(n);
+                cache.put(n, ip);
+            }
+            return ip;
+        }
+
+        @Override
+        public int getSize() {
+            return source.getSize();
+        }
+
+        @Override
+        public String getSliceLabel(int n) {
+            return source.getSliceLabel(n);
+        }
+
+        @Override
+        public void deleteSlice(int n) {
+            // Planes are read only, keep indices stable
+        }
+    }
+}
@@ -39,7 +39,7 @@ import ij.text.*;
 import ij.gui.*;
 import ij.measure.*;
 import ij.Prefs;
-import ij.plugin.ChannelSplitter;
+import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
 import ij.plugin.RoiScaler;
 import ij.plugin.RGBStackConverter;
@@ -50,17 +50,17 @@ import ij.plugin.filter.Analyzer;
 import ij.plugin.filter.ParticleAnalyzer;
 import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
+import ij.process.LUT;
 import ij.process.ImageStatistics;
 
 import static java.lang.Math.floor;
 import ij.util.Tools;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.awt.Color;
 import java.awt.Font;
 
@@ -87,13 +87,16 @@ public class LysoQuant implements PlugIn, Measurements {
     boolean display_values;
     boolean display_cargo;
     int cargo_thres;
+    int[] proteins; // protein channel of each pair, the first is ch_protein
+    boolean track;
+    double trackDistance; // in calibrated units
     boolean display_warning = Boolean.parseBoolean(Prefs.get("lysoquant.display_warning", "true"));
 
-    double minSize = Double.parseDouble(Prefs.get("lysoquant.minsize", "")); //in microns squared
+    double minSize = Double.parseDouble(Prefs.get("lysoquant.minsize", "0.53")); //in microns squared
     String modelname = Prefs.get("lysoquant.model", "");
 
     String modelpath = Prefs.get("unet.modelDefinitionFolder", "")+"/"+modelname;
-    String tilesize = Prefs.get("lysoquant.tilesize", "");
+    String tilesize = LysoQuantAutotune.tileSize();
     String weightspath = Prefs.get("lysoquant.weights", "");
     String gpuflag = Prefs.get("lysoquant.gpuflag", "");
     String useremotehost = Prefs.get("lysoquant.remotehost", "");
@@ -102,18 +105,33 @@ public class LysoQuant implements PlugIn, Measurements {
     String username = Prefs.get("lysoquant.username", "");
     String keypath = Prefs.get("unet.rsaKeyFilename", "");
     String cachefolder = Prefs.get("unet.processfolder", "");
-    String averageflag = "none";
+    String augment = Prefs.get("lysoquant.augment", TestTimeAugmentation.NONE);
+    double confidence = Double.parseDouble(Prefs.get("lysoquant.confidence", "0.7")); // softmax margin
+    String averageflag = augment.equals(TestTimeAugmentation.MIRROR) ? "mirror" : "none";
     String keeporiginal = "false";
     String outputscores = "false";
     String outputsoftmaxscores = "false";
+    boolean interactive = true; // false when driven by a runner, e.g. watch folder
+    ResultsTable summary; // if set, summary rows go here instead of the LysoQuant window
+    Metrics metrics = Metrics.run(); // runners share theirs with every image
+    String reportfolder = Prefs.get("lysoquant.reportfolder", "");
+    boolean triageEnabled = Boolean.parseBoolean(Prefs.get("lysoquant.triage", "false"));
+    Triage triage; // set for the image being analyzed if triage is enabled
+    ResultsTable tracks; // if set, tracking rows go here instead of the LysoQuant Tracks window
+    ResultsTable trackSummary; // same for the LysoQuant Track Summary window
+    Progress progress; // set when running in the background from the GUI
+
+    static final String SEGMENTATION = " (segmentation)"; // end of the title of U-Net label images
         
     @Override
 	public void run(String arg) {
-        HashMap<Integer, String> values = new HashMap<Integer, String>();
-        values.put(1, "Empty");
-        values.put(2, "Loaded");
-
-        ImagePlus image = IJ.getImage();
+        ImagePlus image;
+        if (arg.equals("file")) {
+            image = openFromFile();
+            if (image == null) return;
+        } else {
+            image = IJ.getImage();
+        }
 
         CompositeImage cimg = image.isComposite()?(CompositeImage)image:null;
         int type = image.getType();
@@ -139,124 +157,545 @@ public class LysoQuant implements PlugIn, Measurements {
         Roi roiA = image.getRoi();
         RoiManager roiman = RoiManager.getInstance();
 
-        String title = image.getTitle();
+        if (showDialog(image)) {
+            start(image, roiA, roiman);
+        }
+    }
 
-        String cellID;
+    /**
+     * Run the analysis in a background thread, with progress and Cancel,
+     * so that Fiji stays responsive. Macros wait for the analysis to finish.
+     *
+     * @param image the raw multichannel image
+     * @param roiA optional selection restricting the analysis to one cell
+     * @param roiman optional ROI Manager with one ROI per cell
+     */
+    void start(final ImagePlus image, final Roi roiA, final RoiManager roiman) {
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    analyze(image, roiA, roiman);
+                } finally {
+                    if (progress.cancelled)
+                        IJ.log("LysoQuant: "+image.getTitle()+" cancelled, partial results kept");
+                    progress.close();
+                    saveReport();
+                }
+            }
+        }, "LysoQuant");
+        progress = new Progress("LysoQuant - "+image.getTitle(), worker);
+        worker.start();
+
+        if (IJ.isMacro()) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                progress.cancel();
+            }
+        }
+    }
 
-        if (showDialog()) {
-            // parameters
-            String unetp = "";
-            unetp += "modelFilename=";
-            unetp += modelpath;
-            unetp += ",Tile shape (px):=";
-            unetp += tilesize+"x"+tilesize;
-            unetp += ",weightsFilename=";
-            unetp += weightspath;
-            unetp += ",gpuId=";
-            unetp += gpuflag;
-            unetp += ",useRemoteHost=";
-            unetp += useremotehost;
-            unetp += ",hostname=";
-            unetp += hostname;
-            unetp += ",port=";
-            unetp += port;
-            unetp += ",username=";
-            unetp += username;
-            unetp += ",RSAKeyFile=";
-            unetp += keypath;
-            unetp += ",processFolder=";
-            unetp += cachefolder;
-            unetp += ",average=";
-            unetp += averageflag;
-            unetp += ",keepOriginal=";
-            unetp += keeporiginal;
-            unetp += ",outputScores=";
-            unetp += outputscores;
-            unetp += ",outputSoftmaxScores=";
-            unetp += outputsoftmaxscores;
-    
-            
-            ImagePlus rgb = make_rgb(ch_protein, ch_lyso, image, firstZ, lastZ, firstT, lastT);
-            rgb.show();
+    /**
+     * @param stage description of the current stage, for the status bar
+     */
+    void status(String stage) {
+        if (progress != null)
+            progress.stage(stage);
+    }
 
-            if (roiman==null || roiman.getCount()<1){
+    /**
+     * @return true if the run was cancelled, or its thread interrupted
+     */
+    boolean cancelled() {
+        if (progress != null)
+            return progress.cancelled();
+        return Thread.currentThread().isInterrupted();
+    }
 
-                if (roiA != null) {
-                    rgb.setRoi(roiA);
-                    IJ.run("Clear Outside", "stack");
-                    Rectangle bounds = roiA.getBounds();
-                    cellID = IJ.pad(bounds.x,4)+"-"+IJ.pad(bounds.y,4);
-                } else { 
-                    cellID = "0000-0000";
-                }
+    /**
+     * Save the run report to the report folder of the settings, if any
+     */
+    void saveReport() {
+        if (reportfolder.isEmpty())
+            return;
+        File dir = new File(reportfolder);
+        if (dir.isDirectory() || dir.mkdirs())
+            metrics.save(dir);
+        else
+            IJ.log("LysoQuant: cannot create report folder "+reportfolder);
+    }
+
+    /**
+     * Ask for an image file and series, and open it reading only the planes
+     * that are actually used
+     *
+     * @return opened image, or null if canceled
+     */
+    ImagePlus openFromFile() {
+        OpenDialog od = new OpenDialog("LysoQuant - open image");
+        if (od.getFileName() == null)
+            return null;
+        String path = od.getPath();
+
+        int series = 0;
+        int nSeries = LazyInput.seriesCount(path);
+        if (nSeries > 1) {
+            GenericDialog gd = new GenericDialog("LysoQuant");
+            gd.addSlider("Series", 1, nSeries, 1);
+            gd.showDialog();
+            if (gd.wasCanceled())
+                return null;
+            series = (int)gd.getNextNumber()-1;
+        }
+
+        ImagePlus image = LazyInput.open(path, series);
+        if (image == null) {
+            IJ.error("LysoQuant", "Cannot open "+path);
+            return null;
+        }
+        image.show();
+        return image;
+    }
+
+    /**
+     * Read image dimensions and the channel, slice, frame and measurement
+     * settings of the last interactive run from Prefs, without showing the dialog.
+     * Used by the non-interactive runners (e.g. watch folder).
+     *
+     * @param image the image to be analyzed
+     * @return false if the stored channels are not valid for this image
+     */
+    boolean setupFromPrefs(ImagePlus image) {
+        nChannels = image.getNChannels();
+        nSlices = image.getNSlices();
+        nFrames = image.getNFrames();
+
+        ch_lyso = (int)Prefs.get("lysoquant.display_lyso", 2);
+        ch_protein = (int)Prefs.get("lysoquant.display_protein", 3);
+        proteins = parseChannels(Prefs.get("lysoquant.display_proteins", String.valueOf(ch_protein)));
+        if (proteins == null || proteins[0] != ch_protein)
+            proteins = new int[] {ch_protein};
+        int maxChannel = ch_lyso;
+        for (int channel : proteins) {
+            maxChannel = Math.max(maxChannel, channel);
+        }
+        if (maxChannel > nChannels) {
+            IJ.log("LysoQuant: "+image.getTitle()+" has only "+nChannels+" channels, skipped");
+            return false;
+        }
+
+        firstC = (int)Prefs.get("lysoquant.display_firstC", 1);
+        lastC = (int)Prefs.get("lysoquant.display_lastC", nChannels);
+        if (firstC<1) firstC = 1;
+        if (lastC>nChannels) lastC = nChannels;
+        if (firstC>lastC) {firstC=1; lastC=nChannels;}
+
+        firstZ = 1;
+        lastZ = nSlices;
+        firstT = 1;
+        lastT = nFrames;
+
+        display_values = Boolean.parseBoolean(Prefs.get("lysoquant.display_values", "false"));
+        display_cargo = Boolean.parseBoolean(Prefs.get("lysoquant.display_cargo", "false"));
+        cargo_thres = (int)Prefs.get("lysoquant.cargo_thres", 0);
+        track = Boolean.parseBoolean(Prefs.get("lysoquant.display_tracks", "false"));
+        trackDistance = Prefs.get("lysoquant.track_distance", 1.0);
+
+        return true;
+    }
+
+    /**
+     * Parameter string for SegmentationJob.processHyperStack
+     *
+     * @return comma separated list of U-Net parameters
+     */
+    String unetParameters() {
+        String unetp = "";
+        unetp += "modelFilename=";
+        unetp += modelpath;
+        unetp += ",Tile shape (px):=";
+        unetp += tilesize+"x"+tilesize;
+        unetp += ",weightsFilename=";
+        unetp += weightspath;
+        unetp += ",gpuId=";
+        unetp += gpuflag;
+        unetp += ",useRemoteHost=";
+        unetp += useremotehost;
+        unetp += ",hostname=";
+        unetp += hostname;
+        unetp += ",port=";
+        unetp += port;
+        unetp += ",username=";
+        unetp += username;
+        unetp += ",RSAKeyFile=";
+        unetp += keypath;
+        unetp += ",processFolder=";
+        unetp += cachefolder;
+        unetp += ",average=";
+        unetp += averageflag;
+        unetp += ",keepOriginal=";
+        unetp += keeporiginal;
+        unetp += ",outputScores=";
+        unetp += outputscores;
+        unetp += ",outputSoftmaxScores=";
+        unetp += outputsoftmaxscores;
+        return unetp;
+    }
+
+    /**
+     * Run rgb through U-Net and return the label image, with dimensions set
+     * to the selected slices and frames.
+     *
+     * @param rgb U-Net input
+     * @param title of the raw image
+     * @return segmented image, or null if segmentation failed
+     */
+    ImagePlus unet(ImagePlus rgb, String title) {
+        boolean adaptive = augment.equals(TestTimeAugmentation.ADAPTIVE);
+        outputsoftmaxscores = Boolean.toString(adaptive);
+        // Tiles segmented again are cropped from the planes of rgb, which
+        // U-Net may flush: keep them
+        ImagePlus original = null;
+        if (adaptive) {
+            ImageStack planes = new ImageStack(rgb.getWidth(), rgb.getHeight());
+            for (int i = 1; i <= rgb.getStackSize(); i++) {
+                planes.addSlice(rgb.getStack().getSliceLabel(i), rgb.getStack().getPixels(i));
+            }
+            original = new ImagePlus(rgb.getTitle(), planes);
+            original.setCalibration(rgb.getCalibration().copy());
+        }
+        int[] before = WindowManager.getIDList();
+        long start = System.nanoTime();
+        try {
+            processHyperStack(rgb, unetParameters());
+        } catch (InterruptedException ex) {
+            IJ.log("LysoQuant: segmentation of "+title+" cancelled");
+            Thread.currentThread().interrupt(); // let the caller stop too
+            return null;
+        } finally {
+            metrics.record(Metrics.SEGMENT, start);
+        }
 
+        ImagePlus segmented = newImage(before, SEGMENTATION);
+        if (segmented == null) {
+            IJ.log("LysoQuant: segmentation of "+title+" failed");
+            return null;
+        }
+
+        if (adaptive) {
+            ImagePlus softmax = newImage(before, " (softmax)");
+            if (softmax == null) {
+                IJ.log("LysoQuant: no softmax scores for "+title+", skipping adaptive augmentation");
+            } else {
+                TestTimeAugmentation tta = new TestTimeAugmentation(this);
+                start = System.nanoTime();
                 try {
-                    SegmentationJob.processHyperStack(unetp);
+                    if (!tta.refine(original, segmented, softmax))
+                        IJ.log("LysoQuant: augmented segmentation of "+title+" failed, keeping single pass");
                 } catch (InterruptedException ex) {
-                    Logger.getLogger(LysoQuant.class.getName()).log(Level.SEVERE, null, ex);
+                    IJ.log("LysoQuant: augmented segmentation of "+title+" cancelled");
+                    Thread.currentThread().interrupt();
+                    segmented.close();
+                    return null;
+                } finally {
+                    softmax.close();
+                    metrics.record(Metrics.AUGMENT, start);
                 }
+                IJ.log("LysoQuant: "+title+", "+tta.nRefined+"/"+tta.nTiles+" tiles below confidence "
+                        +confidence+" segmented again with mirror averaging");
+            }
+        }
+        if (segmented.getStackSize() == (lastZ-firstZ+1)*(lastT-firstT+1))
+            segmented.setDimensions(1, lastZ-firstZ+1, lastT-firstT+1);
+        segmented.setTitle("LQ_"+title);
+        return segmented;
+    }
 
-                ImagePlus segmented = IJ.getImage();
-                segmented.setDimensions(1, nSlices, nFrames);
-                segmented.setTitle("LQ_"+title);
+    /**
+     * Segment rgb, or only its planes and region that passed triage if
+     * enabled, and return the label image of the selected slices and frames.
+     *
+     * @param rgb U-Net input
+     * @param title of the raw image
+     * @return segmented image, or null if segmentation failed
+     */
+    ImagePlus segment(ImagePlus rgb, String title) {
+        ImagePlus[] segmented = segment(new ImagePlus[] {rgb}, title);
+        return segmented == null ? null : segmented[0];
+    }
+
+    /**
+     * Segment the U-Net inputs of one or more channel pairs as a single
+     * U-Net job, or only their planes and region that passed triage if
+     * enabled, and return the label image of each pair for the selected
+     * slices and frames.
+     *
+     * @param rgbs U-Net inputs, one per pair, all the same size
+     * @param title of the raw image
+     * @return segmented images, one per pair, or null if segmentation failed
+     */
+    ImagePlus[] segment(ImagePlus[] rgbs, String title) {
+        if (rgbs.length == 1 && triage == null) {
+            ImagePlus segmented = unet(rgbs[0], title);
+            if (segmented == null) return null;
+            if (interactive)
                 new StackWindow(segmented);
+            return new ImagePlus[] {segmented};
+        }
 
-                count(segmented, image, cellID, null, firstC, lastC, values, minSize, display_values, display_cargo, cargo_thres);
+        // All planes of all pairs in one stack
+        ImageStack batch = null;
+        int nPlanes = 0;
+        for (ImagePlus rgb : rgbs) {
+            ImagePlus input = triage == null ? rgb : triage.reduce(rgb);
+            if (input == null) break; // triage is the same for all pairs
+            if (batch == null)
+                batch = new ImageStack(input.getWidth(), input.getHeight());
+            nPlanes = input.getStackSize();
+            for (int i = 1; i <= nPlanes; i++) {
+                batch.addSlice(input.getStack().getProcessor(i));
+            }
+        }
+        if (triage != null) {
+            if (batch == null)
+                IJ.log("LysoQuant: "+title+", nothing passed triage");
+            else
+                IJ.log("LysoQuant: "+title+", "+triage.keptPlanes()+"/"+triage.kept.length+" planes and "
+                        +triage.bounds.width+"x"+triage.bounds.height+" px passed triage");
+        }
 
-            } else {
-                roiman.runCommand(image, "Show None");
+        ImagePlus segmented = null;
+        if (batch != null) {
+            ImagePlus input = new ImagePlus(rgbs[0].getTitle(), batch);
+            input.setCalibration(rgbs[0].getCalibration().copy());
+            input.setDimensions(1, batch.getSize(), 1);
+            segmented = unet(input, title);
+            input.close();
+            if (segmented == null) return null;
+        }
 
-                if (roiman.getCount()>1) {
-                    roiman.runCommand("Combine");
-                } else {
-                    roiman.select(0);
+        // Back to one label image per pair
+        ImagePlus[] results = new ImagePlus[rgbs.length];
+        for (int p = 0; p < rgbs.length; p++) {
+            ImagePlus part = null;
+            if (segmented != null) {
+                ImageStack stack = new ImageStack(segmented.getWidth(), segmented.getHeight());
+                for (int i = 1; i <= nPlanes; i++) {
+                    stack.addSlice(segmented.getStack().getProcessor(p*nPlanes + i));
                 }
-                IJ.run("Clear Outside", "stack");
-                
-                try {
-                    SegmentationJob.processHyperStack(unetp);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(LysoQuant.class.getName()).log(Level.SEVERE, null, ex);
+                part = new ImagePlus(segmented.getTitle(), stack);
+                part.setCalibration(segmented.getCalibration().copy());
+            }
+            if (triage != null)
+                part = triage.expand(part);
+            else
+                part.setDimensions(1, lastZ-firstZ+1, lastT-firstT+1);
+            part.setTitle("LQ_"+title+(rgbs.length > 1 ? "_"+ch_lyso+"-"+proteins[p] : ""));
+            if (interactive)
+                new StackWindow(part);
+            results[p] = part;
+        }
+        if (segmented != null)
+            segmented.close();
+        return results;
+    }
+
+    /**
+     * Clear the U-Net inputs of all pairs outside the cells with the
+     * background color, as Edit>Clear Outside does, but without going
+     * through the current image or the menus. The selection is left on
+     * each input.
+     *
+     * @param rgbs U-Net inputs, one per pair
+     * @param cells selection of the cells
+     */
+    static void clearOutside(ImagePlus[] rgbs, Roi cells) {
+        for (ImagePlus rgb : rgbs) {
+            ImageStack stack = rgb.getStack();
+            for (int i = 1; i <= stack.getSize(); i++) {
+                ImageProcessor ip = stack.getProcessor(i);
+                ip.setColor(Toolbar.getBackgroundColor());
+                ip.fillOutside(cells);
+            }
+            rgb.setRoi(cells);
+        }
+    }
+
+    /**
+     * Run U-Net on input. U-Net segments the current image, so input is made
+     * the current image of this thread only: the analysis runs in the
+     * background and the user may select other images meanwhile. U-Net
+     * closes input, which flushes its pixels if it is shown.
+     *
+     * @param input U-Net input
+     * @param parameters U-Net parameters, see unetParameters()
+     * @throws InterruptedException if the segmentation was interrupted
+     */
+    void processHyperStack(ImagePlus input, String parameters) throws InterruptedException {
+        WindowManager.setTempCurrentImage(input);
+        try {
+            SegmentationJob.processHyperStack(parameters);
+        } finally {
+            WindowManager.setTempCurrentImage(null);
+        }
+    }
+
+    /**
+     * @param before image IDs before an operation
+     * @param suffix end of the title
+     * @return the image with a title ending with suffix opened since, or null
+     */
+    static ImagePlus newImage(int[] before, String suffix) {
+        int[] ids = WindowManager.getIDList();
+        if (ids == null) return null;
+        for (int id : ids) {
+            boolean old = false;
+            if (before != null) {
+                for (int b : before) {
+                    if (b == id) old = true;
                 }
+            }
+            ImagePlus imp = WindowManager.getImage(id);
+            if (!old && imp != null && imp.getTitle().endsWith(suffix))
+                return imp;
+        }
+        return null;
+    }
 
-                ImagePlus segmented = IJ.getImage();
-                segmented.setDimensions(1, nSlices, nFrames);
-                segmented.setTitle("LQ_"+title);
-                new StackWindow(segmented);
+    /**
+     * Preprocess, segment and count the selected slices and frames of image.
+     * Dialog values (channels, ranges, options) must already be set.
+     *
+     * @param image the raw multichannel image
+     * @param roiA optional selection restricting the analysis to one cell
+     * @param roiman optional ROI Manager with one ROI per cell
+     */
+    void analyze(ImagePlus image, Roi roiA, RoiManager roiman) {
+        HashMap<Integer, String> values = classValues();
 
-                int width = image.getWidth();
-                int swidth = segmented.getWidth();
-                double scale = (double) swidth/ (double) width;
+        String title = image.getTitle();
 
-                // Now take rois and clear Roi manager
-                Roi[] rois = roiman.getRoisAsArray();
-                roiman.runCommand("Deselect");
-                roiman.runCommand("Delete");
+        String cellID;
 
-                for (Roi roi : rois){
-                    cellID = roi.getName();
+        metrics.beginImage(title);
+        status("preprocessing "+title);
+        ImagePlus[] rgbs = make_rgb(proteins, ch_lyso, image, firstZ, lastZ, firstT, lastT);
+        for (ImagePlus rgb : rgbs) {
+            rgb.show();
+        }
+        if (cancelled()) return;
 
-                    int pan_x = roi.getBounds().x;
-                    int pan_y = roi.getBounds().y;
-                    
-                    int new_x = (int) floor(pan_x * scale);
-                    int new_y = (int) floor(pan_y * scale);
-                    
-                    Roi scaled = RoiScaler.scale(roi, scale, scale, false);
-                    scaled.setLocation(new_x, new_y);
+        if (roiman==null || roiman.getCount()<1){
 
-                    count(segmented, image, cellID, scaled, firstC, lastC, values, minSize, display_values, display_cargo, cargo_thres);
-    
+            if (roiA != null) {
+                clearOutside(rgbs, roiA);
+                Rectangle bounds = roiA.getBounds();
+                cellID = IJ.pad(bounds.x,4)+"-"+IJ.pad(bounds.y,4);
+            } else { 
+                cellID = "0000-0000";
+            }
+
+            triage = triageEnabled ? new Triage(this, image, new Roi[] {roiA}, new String[] {cellID}) : null;
+            status("segmenting "+title);
+            ImagePlus[] segmented = segment(rgbs, title);
+            if (segmented == null) return;
+
+            count(segmented, proteins, image, cellID, null, firstC, lastC, values, minSize, display_values, display_cargo, cargo_thres);
+            track(segmented, proteins, image, cellID, null);
+
+            if (!interactive) {
+                for (int p = 0; p < rgbs.length; p++) {
+                    rgbs[p].close();
+                    segmented[p].close();
                 }
-                
-                // Apply back old rois
-                for (Roi roi: rois) {
-                    roiman.addRoi(roi);
+            }
+            metrics.endImage();
+
+        } else {
+            roiman.runCommand(image, "Show None");
+
+            Roi[] rois = roiman.getRoisAsArray();
+            clearOutside(rgbs, LysoQuantBatch.union(rois));
+            if (triageEnabled) {
+                String[] cellIDs = new String[rois.length];
+                for (int i = 0; i < rois.length; i++) {
+                    cellIDs[i] = rois[i].getName();
                 }
+                triage = new Triage(this, image, rois, cellIDs);
+            } else {
+                triage = null;
+            }
+            
+            status("segmenting "+title);
+            ImagePlus[] segmented = segment(rgbs, title);
+            if (segmented == null) return;
+
+            int width = image.getWidth();
+            int swidth = segmented[0].getWidth();
+            double scale = (double) swidth/ (double) width;
+
+            // Now clear Roi manager
+            roiman.runCommand("Deselect");
+            roiman.runCommand("Delete");
+
+            for (Roi roi : rois){
+                if (cancelled()) break;
+                cellID = roi.getName();
+                Roi scaled = scaleRoi(roi, scale);
+
+                count(segmented, proteins, image, cellID, scaled, firstC, lastC, values, minSize, display_values, display_cargo, cargo_thres);
+                track(segmented, proteins, image, cellID, scaled);
+
+            }
+            
+            // Apply back old rois
+            for (Roi roi: rois) {
+                roiman.addRoi(roi);
             }
+
+            if (!interactive) {
+                for (int p = 0; p < rgbs.length; p++) {
+                    rgbs[p].close();
+                    segmented[p].close();
+                }
+            }
+            metrics.endImage();
         }
     }     
     
+    /**
+     * Segmentation values and their names
+     *
+     * @return map of label value to class name
+     */
+    HashMap<Integer, String> classValues() {
+        HashMap<Integer, String> values = new HashMap<Integer, String>();
+        values.put(1, "Empty");
+        values.put(2, "Loaded");
+        return values;
+    }
+
+    /**
+     * Scale a cell ROI from raw image to segmented image coordinates
+     *
+     * @param roi cell ROI on the raw image
+     * @param scale segmented width / raw width
+     * @return scaled roi
+     */
+    static Roi scaleRoi(Roi roi, double scale) {
+        int pan_x = roi.getBounds().x;
+        int pan_y = roi.getBounds().y;
+
+        int new_x = (int) floor(pan_x * scale);
+        int new_y = (int) floor(pan_y * scale);
+
+        Roi scaled = RoiScaler.scale(roi, scale, scale, false);
+        scaled.setLocation(new_x, new_y);
+        scaled.setName(roi.getName()); // the scaled copy has no name
+        return scaled;
+    }
+
     /**
      * Take the segmented image and count the number or objects in selected objClass
      * If display_values is true, also measure on each object depending on what is selected
@@ -278,13 +717,28 @@ public class LysoQuant implements PlugIn, Measurements {
      */
     void count(ImagePlus segmented, ImagePlus raw, String cellID, Roi roi, int firstC, int lastC, 
                         HashMap<Integer, String> values, double minSize, boolean display_values, boolean display_cargo, int cargo_thres) {
+        count(new ImagePlus[] {segmented}, new int[] {ch_protein}, raw, cellID, roi, firstC, lastC,
+                values, minSize, display_values, display_cargo, cargo_thres);
+    }
+
+    /**
+     * Count and measure several channel pairs with the same lysosome channel.
+     * Every plane of the raw image is measured for all pairs before moving
+     * to the next one, so that each plane is read only once. Rows are tagged
+     * with the protein channel of their pair.
+     *
+     *  @param labels segmented images, one per pair
+     *  @param proteins protein channel of each pair
+     *  @see #count(ImagePlus, ImagePlus, String, Roi, int, int, HashMap, double, boolean, boolean, int)
+     */
+    void count(ImagePlus[] labels, int[] proteins, ImagePlus raw, String cellID, Roi roi, int firstC, int lastC, 
+                        HashMap<Integer, String> values, double minSize, boolean display_values, boolean display_cargo, int cargo_thres) {
 
         int width = raw.getWidth();
-        int swidth = segmented.getWidth();
+        int swidth = labels[0].getWidth();
         double invscale = (double) width/ (double) swidth;
 
         // Constructors
-        RoiManager countman = new RoiManager(true); // Hidden roimanager for this task
         ResultsTable singles = null; // Table for single results
         Frame frame = WindowManager.getFrame("Results");
         if (frame!=null && (frame instanceof TextWindow)) {
@@ -300,163 +754,202 @@ public class LysoQuant implements PlugIn, Measurements {
 
 
         // Get the Rois from the segmented image
-        Calibration cal = segmented.getCalibration();
+        Calibration cal = labels[0].getCalibration();
         double unitSquared = cal.pixelWidth*cal.pixelHeight;
         minSize = minSize / unitSquared; // minsize must be a double in pixel units
         int options = 0;
         options += ParticleAnalyzer.SHOW_NONE;
-        options += ParticleAnalyzer.ADD_TO_MANAGER;
         options += ParticleAnalyzer.DOES_STACKS;
-        ParticleAnalyzer.setRoiManager(countman); 
         int measurements = 0;
-        ParticleAnalyzer pa = new ParticleAnalyzer(options, measurements, new ResultsTable(), minSize, Double.MAX_VALUE, 0.0, 1.0);
+        ParticleCollector pa = new ParticleCollector(options, measurements, new ResultsTable(), minSize, Double.MAX_VALUE, 0.0, 1.0);
 
+        int protein = ch_protein;
+        int nPlanes = (lastT-firstT+1)*(lastZ-firstZ+1);
+        planes:
         for (int t=firstT; t<= lastT; t++) {
-            for (int z=firstT; z <= lastZ; z++) {
-                int[] totalvalues = new int[values.size()];
-                ArrayList<Double> cargovalues = new ArrayList<Double>();
-
-                for (int i=0; i< values.size(); i++) {
-                    totalvalues[i] = 0;
-                }
+            for (int z=firstZ; z <= lastZ; z++) {
+                if (cancelled()) break planes;
+                int plane = (t-firstT)*(lastZ-firstZ+1) + (z-firstZ) + 1;
+                status("counting "+raw.getTitle()+" "+cellID+", plane "+plane+"/"+nPlanes);
+                if (progress != null)
+                    progress.plane(plane, nPlanes);
+
+                for (int p = 0; p < labels.length; p++) {
+                    ImagePlus segmented = labels[p];
+                    ch_protein = proteins[p];
+
+                    int[] totalvalues = new int[values.size()];
+                    ArrayList<Double> cargovalues = new ArrayList<Double>();
+
+                    for (int i=0; i< values.size(); i++) {
+                        totalvalues[i] = 0;
+                    }
 
-                String imagename = raw.getTitle();
-                String roiname = "";
-                String slices = "";
-                String frames = "";
-                if (roi != null) {
-                    roiname = roi.getName();
-                }
+                    String imagename = raw.getTitle();
+                    String roiname = "";
+                    String slices = "";
+                    String frames = "";
+                    if (roi != null) {
+                        roiname = roi.getName();
+                    }
                 
-                if (nSlices > 1) {
-                    slices = "-z:"+z+"/"+nSlices;
-                }
+                    if (nSlices > 1) {
+                        slices = "-z:"+z+"/"+nSlices;
+                    }
 
-                if (nFrames > 1) {
-                    frames = "-t:"+t+"/"+nFrames;
-                }
+                    if (nFrames > 1) {
+                        frames = "-t:"+t+"/"+nFrames;
+                    }
                 
-                String title = imagename+roiname+slices+frames;
-
-                Iterator <Integer> it = values.keySet().iterator();
-                while(it.hasNext()) {
-                    int objClass = (int)it.next();
-                    String objName = values.get(objClass);
-
-                    // Apply roi
-                    if (roi != null)
-                        segmented.setRoi(roi);
-
-                    // Override Roi position
-                    segmented.setT(t);
-                    segmented.setZ(z);
-
-                    // Get segmented image and apply binary threshold for positives or negatives
-                    ImageProcessor ip = segmented.getProcessor();
-                    ip.setThreshold((double) objClass, (double) objClass, ImageProcessor.NO_LUT_UPDATE);
-                    pa.analyze(segmented);
-
-                    // Now get the ROIS and rescale them to match the raw image
-                    if (countman.getCount() > 0) {
-                        Roi[] tmprois = countman.getRoisAsArray();
-                        totalvalues[objClass-1] = tmprois.length;
-                        countman.runCommand("Deselect");
-                        countman.runCommand("Delete");
-
-                        if (display_values) {
+                    String pair = "";
+                    if (labels.length > 1) {
+                        pair = "-ch:"+ch_lyso+"/"+ch_protein;
+                    }
+
+                    String title = imagename+roiname+slices+frames+pair;
+
+                    String reason = triage == null ? null : triage.reason(cellID, z, t);
+                    if (reason != null) {
+                        updateSkipped(title, values, reason);
+                        continue;
+                    }
+
+                    Iterator <Integer> it = values.keySet().iterator();
+                    while(it.hasNext()) {
+                        int objClass = (int)it.next();
+                        String objName = values.get(objClass);
+
+                        // Apply roi
+                        if (roi != null)
+                            segmented.setRoi(roi);
+
+                        // Override Roi position
+                        // segmented holds only the selected slices and frames
+                        segmented.setT(t-firstT+1);
+                        segmented.setZ(z-firstZ+1);
+
+                        // Get segmented image and apply binary threshold for positives or negatives
+                        ImageProcessor ip = segmented.getProcessor();
+                        ip.setThreshold((double) objClass, (double) objClass, ImageProcessor.NO_LUT_UPDATE);
+                        long start = System.nanoTime();
+                        pa.clear();
+                        pa.analyze(segmented);
+                        metrics.record(Metrics.LABEL, start);
+
+                        // Now get the ROIS and rescale them to match the raw image
+                        if (pa.getCount() > 0) {
+                            Roi[] tmprois = pa.getRoisAsArray();
+                            totalvalues[objClass-1] = tmprois.length;
+                            metrics.addObjects(tmprois.length);
+
+                            if (display_values) {
                             
-                            int counter;
-                            Overlay overlay = raw.getOverlay();
-
-                            if (overlay==null) {
-                                overlay = new Overlay();
-                                counter = 1;
-                            } else {
-                                counter = overlay.size()+1;
-                            }
+                                int counter;
+                                Overlay overlay = raw.getOverlay();
+
+                                if (overlay==null) {
+                                    overlay = new Overlay();
+                                    counter = 1;
+                                } else {
+                                    counter = overlay.size()+1;
+                                }
                             
-                            if (!overlay.getDrawLabels())
-                                overlay.drawLabels(true);
+                                if (!overlay.getDrawLabels())
+                                    overlay.drawLabels(true);
                     
-                            if (!overlay.getDrawNames())
-                                overlay.drawNames(true);
+                                if (!overlay.getDrawNames())
+                                    overlay.drawNames(true);
                                 
-                            overlay.setLabelColor(Color.white);
-                            overlay.drawBackgrounds(true);
-
-                            for (Roi tmproi: tmprois) {
-                                int pan_x = tmproi.getBounds().x;
-                                int pan_y = tmproi.getBounds().y;
-                                int new_x = (int) floor(pan_x * invscale);
-                                int new_y = (int) floor(pan_y * invscale);
+                                overlay.setLabelColor(Color.white);
+                                overlay.drawBackgrounds(true);
+
+                                for (Roi tmproi: tmprois) {
+                                    if (cancelled()) break;
+                                    start = System.nanoTime();
+                                    int pan_x = tmproi.getBounds().x;
+                                    int pan_y = tmproi.getBounds().y;
+                                    int new_x = (int) floor(pan_x * invscale);
+                                    int new_y = (int) floor(pan_y * invscale);
                                 
-                                Roi tmpscaled = RoiScaler.scale(tmproi, invscale, invscale, false);
-                                tmpscaled.setLocation(new_x, new_y);
-                                tmpscaled.setName(objName+"-"+String.valueOf(counter));
-                                tmpscaled.setPosition(ch_lyso, z, t);
-
-                                for (int channel = firstC; channel <= lastC; channel++) {
-                                    raw.setRoi(tmpscaled, false);
-                                    raw.setPosition(channel, z, t);
-                                    measure.measure();
-                                    singles.addValue("Lysosome Type", objName);
-                                    singles.addValue("Lysosome Channel", ch_lyso);
-                                    singles.addValue("Protein Channel", ch_protein);
-                                    singles.addValue("Measurement Channel", channel);
-                                    singles.addValue("Image", imagename);
-                                    singles.addValue("Cell ID", cellID);
+                                    Roi tmpscaled = RoiScaler.scale(tmproi, invscale, invscale, false);
+                                    tmpscaled.setLocation(new_x, new_y);
+                                    tmpscaled.setName(objName+"-"+String.valueOf(counter)+pair);
+                                    tmpscaled.setPosition(ch_lyso, z, t);
+                                    metrics.record(Metrics.OVERLAY, start);
+
+                                    for (int channel = firstC; channel <= lastC; channel++) {
+                                        start = System.nanoTime();
+                                        raw.setRoi(tmpscaled, false);
+                                        raw.setPosition(channel, z, t);
+                                        measure.measure();
+                                        singles.addValue("Lysosome Type", objName);
+                                        singles.addValue("Lysosome Channel", ch_lyso);
+                                        singles.addValue("Protein Channel", ch_protein);
+                                        singles.addValue("Measurement Channel", channel);
+                                        singles.addValue("Image", imagename);
+                                        singles.addValue("Cell ID", cellID);
                                     
-                                    if (nSlices > 1)
-                                        singles.addValue("Slice", slices);
-                                    if (nFrames > 1)
-                                        singles.addValue("Frame", frames);
-
-                                    // Calculate % cargo area occupied inside each lysosome, when cargo has intensity higher than cargo_thres
-                                    if (display_cargo) {
-                                        // here we're using the same roi and position as above
+                                        if (nSlices > 1)
+                                            singles.addValue("Slice", slices);
+                                        if (nFrames > 1)
+                                            singles.addValue("Frame", frames);
+
+                                        // Calculate % cargo area occupied inside each lysosome, when cargo has intensity higher than cargo_thres
+                                        if (display_cargo) {
+                                            // here we're using the same roi and position as above
                                         
-                                        // create an image processor to set threshold
-                                        ImageProcessor ipraw = raw.getProcessor();
-                                        double minThres = (double)cargo_thres;
-                                        double maxThres = ipraw.getMax();
-                                        ipraw.setThreshold(minThres, maxThres, ImageProcessor.NO_LUT_UPDATE);
+                                            // create an image processor to set threshold
+                                            ImageProcessor ipraw = raw.getProcessor();
+                                            double minThres = (double)cargo_thres;
+                                            double maxThres = ipraw.getMax();
+                                            ipraw.setThreshold(minThres, maxThres, ImageProcessor.NO_LUT_UPDATE);
                                         
-                                        // define the measurements and save to variable
-                                        int cargoptions = ImageStatistics.AREA_FRACTION; // this considers implicitly the ImageStatistics.LIMIT
-                                        ImageStatistics cargostats = ImageStatistics.getStatistics(ipraw, cargoptions, cal);
-
-                                        // add to our tables of values for single lysosomes
-                                        singles.addValue("%Cargo Area", cargostats.areaFraction);
-                                        cargovalues.add(cargostats.areaFraction);
-                                        singles.addValue("Cargo Area minT", minThres);
-                                        singles.addValue("Cargo Area maxT", maxThres);
+                                            // define the measurements and save to variable
+                                            int cargoptions = ImageStatistics.AREA_FRACTION; // this considers implicitly the ImageStatistics.LIMIT
+                                            ImageStatistics cargostats = ImageStatistics.getStatistics(ipraw, cargoptions, cal);
+
+                                            // add to our tables of values for single lysosomes
+                                            singles.addValue("%Cargo Area", cargostats.areaFraction);
+                                            cargovalues.add(cargostats.areaFraction);
+                                            singles.addValue("Cargo Area minT", minThres);
+                                            singles.addValue("Cargo Area maxT", maxThres);
+                                        }
+                                        metrics.record(Metrics.MEASURE, start);
                                     }
-
-                                    singles.show("Results");
+                                    overlay.add(tmpscaled);
+                                    counter++;
                                 }
-                                overlay.add(tmpscaled);
-                                counter++;
-                            }
 
-                            raw.setOverlay(overlay);
+                                raw.setOverlay(overlay);
+                            }
                         }
                     }
-                }
 
-                if (display_cargo) {
-                    Double cargomedian = getMedian(cargovalues);
-                    updateSummary(title, values, totalvalues, cargomedian);
-                } else {
-                    updateSummary(title, values, totalvalues);
+                    // Flush the single values of this plane
+                    if (display_values && singles.size() > 0) {
+                        long start = System.nanoTime();
+                        singles.show("Results");
+                        metrics.record(Metrics.SHOW, start);
+                    }
+
+                    if (display_cargo) {
+                        Double cargomedian = getMedian(cargovalues);
+                        updateSummary(title, values, totalvalues, cargomedian);
+                    } else {
+                        updateSummary(title, values, totalvalues);
+                    }
                 }
             }
         }
-
-
+        ch_protein = protein;
     }
 
     // com.java2s
     Double getMedian(ArrayList<Double> values) {
+        // No cargo measured, e.g. no lysosomes or single values not requested
+        if (values.isEmpty())
+            return Double.NaN;
+
         Collections.sort(values);
 
         if (values.size() % 2 == 1)
@@ -469,6 +962,85 @@ public class LysoQuant implements PlugIn, Measurements {
         }
     }
 
+    /**
+     * Link the lysosomes of the selected frames into tracks, for every
+     * selected slice, and add them to the tracking tables.
+     *
+     * @param segmented labels of the selected slices and frames
+     * @param raw the raw multichannel image
+     * @param cellID cell name
+     * @param roi cell ROI in segmented coordinates, or null
+     */
+    void track(ImagePlus segmented, ImagePlus raw, String cellID, Roi roi) {
+        track(new ImagePlus[] {segmented}, new int[] {ch_protein}, raw, cellID, roi);
+    }
+
+    /**
+     * Track lysosomes of several channel pairs, each in its own label image
+     *
+     * @param labels segmented images, one per pair
+     * @param proteins protein channel of each pair
+     * @param raw the raw multichannel image
+     * @param cellID cell name
+     * @param roi cell ROI in segmented coordinates, or null
+     */
+    void track(ImagePlus[] labels, int[] proteins, ImagePlus raw, String cellID, Roi roi) {
+        if (!track || lastT <= firstT)
+            return;
+
+        ResultsTable spotTable = tracks != null ? tracks : windowTable("LysoQuant Tracks");
+        ResultsTable trackTable = trackSummary != null ? trackSummary : windowTable("LysoQuant Track Summary");
+        int protein = ch_protein;
+        for (int p = 0; p < labels.length; p++) {
+            ch_protein = proteins[p];
+            for (int z = firstZ; z <= lastZ; z++) {
+                if (cancelled()) break;
+                status("tracking "+raw.getTitle()+" "+cellID+", slice "+z);
+                long start = System.nanoTime();
+                Tracker tracker = new Tracker(this, labels[p], raw, cellID, roi, z);
+                tracker.run();
+                tracker.addSpots(spotTable);
+                tracker.addTracks(trackTable);
+                metrics.record(Metrics.TRACK, start);
+            }
+            labels[p].deleteRoi();
+        }
+        ch_protein = protein;
+
+        if (tracks == null)
+            spotTable.show("LysoQuant Tracks");
+        if (trackSummary == null)
+            trackTable.show("LysoQuant Track Summary");
+    }
+
+    /**
+     * Table receiving the summary rows: summary if set by a runner,
+     * otherwise the table of the LysoQuant window
+     *
+     * @return summary table
+     */
+    ResultsTable summaryTable() {
+        if (summary != null)
+            return summary;
+        return windowTable("LysoQuant");
+    }
+
+    /**
+     * @param title of a results window
+     * @return the table of the window, or a new table if there is none
+     */
+    static ResultsTable windowTable(String title) {
+        Frame frame = WindowManager.getFrame(title);
+        if (frame!=null && (frame instanceof TextWindow)) {
+            TextWindow tw = (TextWindow)frame;
+            ResultsTable table = tw.getTextPanel().getResultsTable();
+            if (table!= null) {
+                return table;
+            }
+        }
+        return new ResultsTable();
+    }
+
     /**
      * Update summary table
      * 
@@ -478,19 +1050,7 @@ public class LysoQuant implements PlugIn, Measurements {
      * @param cargomedian
      */
     void updateSummary(String title, HashMap<Integer, String> values, int[] totalvalues, double cargomedian) {
-        ResultsTable totals = null;
-        Frame frame = WindowManager.getFrame("LysoQuant");
-        if (frame!=null && (frame instanceof TextWindow)) {
-            TextWindow tw = (TextWindow)frame;
-            ResultsTable table = tw.getTextPanel().getResultsTable();
-            if (table!= null) {
-                totals = table;
-            } else {
-                totals = new ResultsTable();
-            }
-        } else {
-                totals = new ResultsTable();
-        }
+        ResultsTable totals = summaryTable();
 
         int sum = 0;
         Iterator<Integer> it = values.keySet().iterator();
@@ -513,7 +1073,13 @@ public class LysoQuant implements PlugIn, Measurements {
         }
         totals.addValue("Total #", sum);
         totals.addValue("%Cargo Area Median", cargomedian);
-        totals.show("LysoQuant");
+        if (triage != null)
+            totals.addValue("Triage", Triage.PASSED);
+        if (summary == null) {
+            long start = System.nanoTime();
+            totals.show("LysoQuant");
+            metrics.record(Metrics.SHOW, start);
+        }
 
     }
 
@@ -525,19 +1091,7 @@ public class LysoQuant implements PlugIn, Measurements {
      * @param totalvalues array of counts
      */
     void updateSummary(String title, HashMap<Integer, String> values, int[] totalvalues) {
-        ResultsTable totals = null;
-        Frame frame = WindowManager.getFrame("LysoQuant");
-        if (frame!=null && (frame instanceof TextWindow)) {
-            TextWindow tw = (TextWindow)frame;
-            ResultsTable table = tw.getTextPanel().getResultsTable();
-            if (table!= null) {
-                totals = table;
-            } else {
-                totals = new ResultsTable();
-            }
-        } else {
-                totals = new ResultsTable();
-        }
+        ResultsTable totals = summaryTable();
 
         int sum = 0;
         Iterator<Integer> it = values.keySet().iterator();
@@ -559,9 +1113,88 @@ public class LysoQuant implements PlugIn, Measurements {
             totals.addValue(objName+" Ratio", (double)totalvalues[objClass-1]/(double)sum);
         }
         totals.addValue("Total #", sum);
-        totals.show("LysoQuant");
+        if (triage != null)
+            totals.addValue("Triage", Triage.PASSED);
+        if (summary == null) {
+            long start = System.nanoTime();
+            totals.show("LysoQuant");
+            metrics.record(Metrics.SHOW, start);
+        }
+    }
+
+    /**
+     * Add a summary row for a cell, slice or frame skipped by triage
+     *
+     * @param title of measurement, with image name, roiname, slice and frame
+     * @param values dictionary of values
+     * @param reason why it was not analyzed
+     */
+    void updateSkipped(String title, HashMap<Integer, String> values, String reason) {
+        ResultsTable totals = summaryTable();
+
+        totals.incrementCounter();
+        totals.addLabel(title);
+        totals.addValue("Lysosome Ch", ch_lyso);
+        totals.addValue("Protein Ch", ch_protein);
+
+        Iterator<Integer> it = values.keySet().iterator();
+        while(it.hasNext()) {
+            String objName = values.get((int)it.next());
+            totals.addValue(objName, Double.NaN);
+            totals.addValue(objName+" Ratio", Double.NaN);
+        }
+        totals.addValue("Total #", Double.NaN);
+        if (display_cargo)
+            totals.addValue("%Cargo Area Median", Double.NaN);
+        totals.addValue("Triage", reason);
+        if (summary == null) {
+            long start = System.nanoTime();
+            totals.show("LysoQuant");
+            metrics.record(Metrics.SHOW, start);
+        }
     }
  
+    /**
+     * Pre-processing step for several channel pairs with the same lysosome
+     * channel. The lysosome channel is read once and merged with each
+     * protein channel, as in the single pair version.
+     *
+     * @param proteins channels of the proteins inside lysosomes, one per pair --> RED
+     * @param ch_lyso is the marker for lysosomes --> GREEN
+     * @param imp is the TIFF image to convert
+     * @param firstZ for reducing the stack according to input
+     * @param lastZ for reducing the stack according to input
+     * @param firstT for reducing the stack according to input
+     * @param lastT for reducing the stack according to input
+     * @return one rgb image per pair
+     */
+    ImagePlus[] make_rgb(int[] proteins, int ch_lyso, ImagePlus imp, int firstZ, int lastZ, int firstT, int lastT) {
+        if (proteins.length == 1)
+            return new ImagePlus[] {make_rgb(proteins[0], ch_lyso, imp, firstZ, lastZ, firstT, lastT)};
+
+        long start = System.nanoTime();
+        Calibration cal = imp.getCalibration();
+        imp.deleteRoi(); // We need to duplicate the whole image
+        ImagePlus lyso = new Duplicator().run(imp, ch_lyso, ch_lyso, firstZ, lastZ, firstT, lastT);
+        lyso.setLut(LUT.createLutFromColor(Color.green));
+
+        ImagePlus[] rgbs = new ImagePlus[proteins.length];
+        for (int p = 0; p < proteins.length; p++) {
+            ImagePlus protein = new Duplicator().run(imp, proteins[p], proteins[p], firstZ, lastZ, firstT, lastT);
+            protein.setLut(LUT.createLutFromColor(Color.red));
+
+            ImagePlus[] stack = {protein, lyso};
+            ImagePlus mergergb = RGBStackMerge.mergeChannels(stack, true); // lyso is used again
+            mergergb.setCalibration(cal);
+            RGBStackConverter.convertToRGB(mergergb);
+            mergergb.setTitle(mergergb.getTitle()+"_"+ch_lyso+"-"+proteins[p]);
+            metrics.addPixels((long)mergergb.getWidth()*mergergb.getHeight()*mergergb.getStackSize());
+            rgbs[p] = mergergb;
+        }
+        metrics.record(Metrics.PREPROCESS, start);
+        return rgbs;
+    }
+
     /**
      * Pre-processing step. Take multichannel TIFF image and convert it to RGB
      * with Lysosome Channel in green LUT and Protein Channel in red LUT
@@ -575,33 +1208,65 @@ public class LysoQuant implements PlugIn, Measurements {
      * @param lastT for reducing the stack according to input
      * @return rgb image with settings above
      */
-    private ImagePlus make_rgb(int ch_protein, int ch_lyso, ImagePlus imp, int firstZ, int lastZ, int firstT, int lastT) {
+    ImagePlus make_rgb(int ch_protein, int ch_lyso, ImagePlus imp, int firstZ, int lastZ, int firstT, int lastT) {
+        long start = System.nanoTime();
         Calibration cal = imp.getCalibration();
-        int nChannels = imp.getNChannels();
         imp.deleteRoi(); // We need to duplicate the whole image
-        ImagePlus imp2 = new Duplicator().run(imp, 1, nChannels, firstZ, lastZ, firstT, lastT);
-        ImagePlus[] channels = ChannelSplitter.split(imp2);
-        IJ.run(channels[ch_protein-1], "Red", "");
-        IJ.run(channels[ch_lyso-1], "Green", "");
+        // Only the two channels are read, so virtual stacks are not loaded entirely
+        ImagePlus protein = new Duplicator().run(imp, ch_protein, ch_protein, firstZ, lastZ, firstT, lastT);
+        ImagePlus lyso = new Duplicator().run(imp, ch_lyso, ch_lyso, firstZ, lastZ, firstT, lastT);
+        // Same LUTs as the Red and Green commands, without needing the ImageJ menus
+        protein.setLut(LUT.createLutFromColor(Color.red));
+        lyso.setLut(LUT.createLutFromColor(Color.green));
         
-        ImagePlus[] stack = {channels[ch_protein-1], channels[ch_lyso-1]};
+        ImagePlus[] stack = {protein, lyso};
         
         ImagePlus mergergb = RGBStackMerge.mergeChannels(stack, false);
         mergergb.setCalibration(cal);
         RGBStackConverter.convertToRGB(mergergb);
+        metrics.addPixels((long)mergergb.getWidth()*mergergb.getHeight()*mergergb.getStackSize());
+        metrics.record(Metrics.PREPROCESS, start);
         return mergergb;
     }
     
+    /**
+     * @param list channel numbers separated by commas or spaces, e.g. "3,4"
+     * @return the channels, or null if the list is empty or not valid
+     */
+    static int[] parseChannels(String list) {
+        String[] items = Tools.split(list, " ,;");
+        int[] channels = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            double channel = Tools.parseDouble(items[i]);
+            if (Double.isNaN(channel) || channel < 1)
+                return null;
+            channels[i] = (int)channel;
+        }
+        return channels.length == 0 ? null : channels;
+    }
+
+    /**
+     * @return channel numbers separated by commas
+     */
+    static String joinChannels(int[] channels) {
+        String list = "";
+        for (int i = 0; i < channels.length; i++) {
+            list += (i > 0 ? "," : "")+channels[i];
+        }
+        return list;
+    }
+
     /**
      * GUI for this plugin
      * 
+     * @param image the image to analyze
      * @return true is everything goes fine, false if canceled
      */
-    private boolean showDialog() {
+    private boolean showDialog(ImagePlus image) {
         GenericDialog gd = new GenericDialog("LysoQuant");
 
 	    gd.addNumericField("Lysosome Channel", Integer.parseInt(Prefs.get("lysoquant.display_lyso", "2")), 0);
-	    gd.addNumericField("Protein Channel", Integer.parseInt(Prefs.get("lysoquant.display_protein", "3")), 0);
+	    gd.addStringField("Protein Channel(s)", Prefs.get("lysoquant.display_proteins", Prefs.get("lysoquant.display_protein", "3")));
 
 	    if (nSlices > 1) {
             gd.addStringField("Slices", "1-"+nSlices);
@@ -635,6 +1300,12 @@ public class LysoQuant implements PlugIn, Measurements {
         
         gd.addNumericField("Threshold for area", Integer.parseInt(Prefs.get("lysoquant.cargo_thres", "0")), 0); 
 
+        if (nFrames > 1) {
+            gd.addCheckbox("Track lysosomes over frames", Boolean.parseBoolean(Prefs.get("lysoquant.display_tracks", "false")));
+            gd.addNumericField("Max displacement per frame", Prefs.get("lysoquant.track_distance", 1.0), 2, 6,
+                    image.getCalibration().getUnits());
+        }
+
         Font citationFont = new Font("Arial", Font.PLAIN, 10);
         gd.addMessage("Please cite Morone et al., MBoC 2020\ndoi:10.1091/mbc.e20-04-0269 ", citationFont);
 
@@ -648,11 +1319,18 @@ public class LysoQuant implements PlugIn, Measurements {
             IJ.error("Selected lysosome channel is higher than total number of channels");
             return false;
         }
-        ch_protein = (int)gd.getNextNumber();
-        if (ch_protein > nChannels) {
-            IJ.error("Selected protein channel is higher than total number of channels");
+        proteins = parseChannels(gd.getNextString());
+        if (proteins == null) {
+            IJ.error("Protein channels must be a list of channel numbers, e.g. 3 or 3,4");
             return false;
         }
+        for (int channel : proteins) {
+            if (channel > nChannels) {
+                IJ.error("Selected protein channel is higher than total number of channels");
+                return false;
+            }
+        }
+        ch_protein = proteins[0];
         // The order of these ifs should match the order above
         if (nSlices > 1) {
             // Retrieve slices
@@ -693,10 +1371,18 @@ public class LysoQuant implements PlugIn, Measurements {
         display_cargo = (boolean)gd.getNextBoolean();
 
         cargo_thres = (int)gd.getNextNumber();
+
+        if (nFrames > 1) {
+            track = gd.getNextBoolean();
+            trackDistance = gd.getNextNumber();
+            Prefs.set("lysoquant.display_tracks", Boolean.toString(track));
+            Prefs.set("lysoquant.track_distance", trackDistance);
+        }
        
         // Save for next usage
         Prefs.set("lysoquant.display_lyso", ch_lyso);
         Prefs.set("lysoquant.display_protein", ch_protein);
+        Prefs.set("lysoquant.display_proteins", joinChannels(proteins));
         Prefs.set("lysoquant.display_values", Boolean.toString(display_values));
         Prefs.set("lysoquant.display_firstC", firstC);
         Prefs.set("lysoquant.display_lastC", lastC);
@@ -0,0 +1,236 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.Prefs;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import de.unifreiburg.unet.ModelDefinition;
+
+import java.io.File;
+import java.util.TreeSet;
+
+/**
+ * Tile size autotuning.
+ * Segments one plane of the current image with a range of tile shapes valid
+ * for the model, on the configured backend, and measures throughput and
+ * peak memory. The fastest tile shape that did not fail is stored for the
+ * current model, weights and backend (host and GPU), and is used by
+ * LysoQuant from then on. Candidates are timed on plain U-Net passes,
+ * without test-time augmentation or averaging.
+ * Memory on the backend cannot be read from here: a tile shape that does not
+ * fit on the GPU makes the segmentation fail and is discarded.
+ *
+ * @author Diego Morone
+ */
+public class LysoQuantAutotune implements PlugIn {
+
+    static final int DEFAULT_STEP = 16; // 4 max-poolings in the LysoQuant U-Net
+
+    @Override
+    public void run(String arg) {
+        ImagePlus image = IJ.getImage();
+
+        LysoQuant lq = new LysoQuant();
+        lq.interactive = false;
+        if (!lq.setupFromPrefs(image)) {
+            IJ.error("LysoQuant Autotune", "Run LysoQuant once on this kind of image first");
+            return;
+        }
+
+        GenericDialog gd = new GenericDialog("LysoQuant Autotune");
+        gd.addMessage("Tile size for "+lq.modelname+" on "+backend()+"\nCurrent: "+lq.tilesize);
+        gd.addNumericField("Candidates: ", Prefs.get("lysoquant.autotune.candidates", 6), 0);
+        gd.addNumericField("Repeats: ", Prefs.get("lysoquant.autotune.repeats", 1), 0);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return;
+        int nCandidates = Math.max(1, (int)gd.getNextNumber());
+        int repeats = Math.max(1, (int)gd.getNextNumber());
+        Prefs.set("lysoquant.autotune.candidates", nCandidates);
+        Prefs.set("lysoquant.autotune.repeats", repeats);
+
+        // Time a single U-Net pass per tile: the augmentation settings would
+        // add passes whose number depends on the image, not on the tile size
+        lq.augment = TestTimeAugmentation.NONE;
+        lq.averageflag = "none";
+
+        // Sample: the current plane
+        lq.firstZ = lq.lastZ = image.getZ();
+        lq.firstT = lq.lastT = image.getT();
+
+        int[] candidates = candidates(lq.modelpath, image.getWidth(), image.getHeight(), nCandidates, lq.tilesize);
+        ResultsTable table = new ResultsTable();
+        int best = -1;
+        double bestThroughput = 0;
+        for (int i = 0; i < candidates.length; i++) {
+            int size = candidates[i];
+            IJ.showStatus("LysoQuant autotune: tile "+size+" ("+(i+1)+"/"+candidates.length+")");
+            lq.tilesize = String.valueOf(size);
+
+            double seconds = 0;
+            long peak = 0;
+            long pixels = 0;
+            boolean ok = true;
+            for (int r = 0; r < repeats && ok; r++) {
+                ImagePlus rgb = lq.make_rgb(lq.ch_protein, lq.ch_lyso, image, lq.firstZ, lq.lastZ, lq.firstT, lq.lastT);
+                pixels += (long)rgb.getWidth()*rgb.getHeight();
+                Metrics.resetHeapPeak();
+                long start = System.nanoTime();
+                ImagePlus segmented = lq.unet(rgb, image.getTitle());
+                seconds += (System.nanoTime() - start) / 1e9;
+                peak = Math.max(peak, Metrics.heapPeak());
+                rgb.close();
+                if (segmented == null)
+                    ok = false;
+                else
+                    segmented.close();
+            }
+            double throughput = ok ? pixels / seconds : 0;
+
+            table.incrementCounter();
+            table.addValue("Tile size", size);
+            table.addValue("Status", ok ? "ok" : "failed");
+            table.addValue("Time (s)", seconds / repeats);
+            table.addValue("Pixels/s", throughput);
+            table.addValue("Peak Memory (MB)", peak / (1024.0*1024.0));
+            table.show("LysoQuant Autotune");
+
+            if (ok && throughput > bestThroughput) {
+                best = size;
+                bestThroughput = throughput;
+            }
+        }
+
+        if (best < 0) {
+            IJ.error("LysoQuant Autotune", "Segmentation failed with every tile size,\ncheck the LysoQuant settings");
+            return;
+        }
+        Prefs.set(key(), best);
+        Prefs.set(key()+".throughput", bestThroughput);
+        IJ.log("LysoQuant: tile size "+best+" selected for "+lq.modelname+" on "+backend()
+                +" ("+IJ.d2s(bestThroughput/1e6, 2)+" Mpixels/s)");
+    }
+
+    /**
+     * Valid tile sizes to try: output shapes of the model, from the minimum one
+     * in steps of the downsampling factor, spread geometrically up to the size
+     * of the image. Falls back to multiples of 16 around the current tile
+     * size if the model definition cannot be read.
+     *
+     * @param modelpath model definition (.modeldef.h5)
+     * @param width of the sample image
+     * @param height of the sample image
+     * @param n number of candidates
+     * @param current tile size currently in use, always tried
+     * @return sorted tile sizes
+     */
+    static int[] candidates(String modelpath, int width, int height, int n, String current) {
+        int min = DEFAULT_STEP;
+        int step = DEFAULT_STEP;
+        try {
+            // Through reflection: load() declares HDF5 exceptions, whose classes are only in Fiji
+            ModelDefinition model = new ModelDefinition();
+            ModelDefinition.class.getMethod("load", File.class).invoke(model, new File(modelpath));
+            min = model.getMinimumOutputShape()[0];
+            step = model.downsampleFactor[0];
+        } catch (Throwable ex) {
+            IJ.log("LysoQuant: cannot read "+modelpath+" ("+ex+"), trying multiples of "+DEFAULT_STEP);
+        }
+
+        int max = Math.max(min, Math.max(width, height));
+        TreeSet<Integer> sizes = new TreeSet<Integer>();
+        for (int i = 0; i < n; i++) {
+            double target = n == 1 ? max : min * Math.pow((double)max / min, (double)i / (n-1));
+            sizes.add(valid(target, min, step));
+        }
+        try {
+            sizes.add(valid(Double.parseDouble(current), min, step));
+        } catch (NumberFormatException ex) {
+            // no current tile size
+        }
+
+        int[] candidates = new int[sizes.size()];
+        int i = 0;
+        for (int size : sizes) {
+            candidates[i++] = size;
+        }
+        return candidates;
+    }
+
+    /**
+     * @return the closest size min + k*step to target
+     */
+    static int valid(double target, int min, int step) {
+        long k = Math.max(0, Math.round((target - min) / step));
+        return (int)(min + k*step);
+    }
+
+    /**
+     * Tile size for the current model, weights and backend: the autotuned one if
+     * there is one and it is enabled, otherwise the one of the settings.
+     *
+     * @return tile size
+     */
+    public static String tileSize() {
+        String tuned = Prefs.get(key(), "");
+        if (!tuned.isEmpty() && Boolean.parseBoolean(Prefs.get("lysoquant.autotune", "true")))
+            return tuned;
+        return Prefs.get("lysoquant.tilesize", "");
+    }
+
+    /**
+     * Prefs key of the autotuned tile size for the current model, weights and backend
+     */
+    static String key() {
+        String id = Prefs.get("lysoquant.model", "")+"\n"+Prefs.get("lysoquant.weights", "")+"\n"+backend();
+        return "lysoquant.autotune.tilesize."+Integer.toHexString(id.hashCode());
+    }
+
+    /**
+     * Host and GPU running U-Net: a tile size that fits on one GPU may not fit on another
+     */
+    static String backend() {
+        return host()+" "+Prefs.get("lysoquant.gpuflag", "");
+    }
+
+    static String host() {
+        if (Boolean.parseBoolean(Prefs.get("lysoquant.remotehost", "false")))
+            return Prefs.get("lysoquant.server", "")+":"+Prefs.get("lysoquant.port", "");
+        return "localhost";
+    }
+}
@@ -0,0 +1,640 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.io.RoiDecoder;
+import ij.Prefs;
+import ij.macro.Interpreter;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Batch mode with a checkpoint journal.
+ * Runs every image of a folder through LysoQuant, saving the output of each
+ * stage (RGB input, label image, summary rows per cell) to the output folder
+ * and recording it in a Journal. A restarted batch skips the finished stages
+ * and retries the failed ones, waiting longer after each failure.
+ * Cells are read from a RoiSet (image.zip or image.roi) next to each image;
+ * without it the whole image is one cell.
+ * Channels and measurement options are those of the last LysoQuant run.
+ *
+ * @author Diego Morone
+ */
+public class LysoQuantBatch implements PlugIn {
+
+    public static final String JOURNAL = "lysoquant_journal.tsv";
+    public static final String SUMMARY = "LysoQuant_summary.csv";
+
+    String inputFolder;
+    String outputFolder;
+    String extension;
+    int retries;
+    double backoff; // in seconds, doubled after every failed attempt
+
+    Journal journal;
+    Metrics metrics = Metrics.run();
+    // Set from another thread to stop the current image before its next stage is recorded
+    volatile boolean abort;
+
+    @Override
+    public void run(String arg) {
+
+        if (!showDialog()) return;
+
+        File indir = new File(inputFolder);
+        File outdir = new File(outputFolder);
+        if (!indir.isDirectory()) {
+            IJ.error("LysoQuant Batch", "Folder not found:\n"+inputFolder);
+            return;
+        }
+        if (!outdir.isDirectory() && !outdir.mkdirs()) {
+            IJ.error("LysoQuant Batch", "Cannot create output folder:\n"+outputFolder);
+            return;
+        }
+
+        try {
+            journal = new Journal(new File(outdir, JOURNAL));
+        } catch (IOException ex) {
+            IJ.error("LysoQuant Batch", "Cannot read journal:\n"+ex.getMessage());
+            return;
+        }
+
+        File[] files = images(indir, extension);
+        boolean batchMode = Interpreter.isBatchMode();
+        Interpreter.batchMode = true;
+        IJ.resetEscape();
+        int failed = 0;
+        try {
+            for (int i = 0; i < files.length; i++) {
+                if (IJ.escapePressed()) break;
+                IJ.showProgress(i, files.length);
+                if (!processWithRetries(files[i], outdir))
+                    failed++;
+            }
+        } finally {
+            Interpreter.batchMode = batchMode;
+            IJ.showProgress(1.0);
+        }
+
+        ResultsTable summary = merge(files);
+        try {
+            summary.save(new File(outdir, SUMMARY).getPath());
+        } catch (Exception ex) {
+            IJ.log("LysoQuant: cannot save summary: "+ex.getMessage());
+        }
+        summary.show("LysoQuant");
+        metrics.save(outdir);
+        IJ.log("LysoQuant: batch finished, "+(files.length-failed)+"/"+files.length+" images complete");
+    }
+
+    /**
+     * Images to process in folder, sorted by name
+     *
+     * @param dir input folder
+     * @param extension file extension, lower case
+     * @return image files
+     */
+    static File[] images(File dir, String extension) {
+        ArrayList<File> list = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().toLowerCase().endsWith(extension))
+                    list.add(file);
+            }
+        }
+        File[] images = list.toArray(new File[list.size()]);
+        Arrays.sort(images);
+        return images;
+    }
+
+    /**
+     * Process all series of one image file, retrying each with exponential
+     * backoff on failure.
+     *
+     * @param file image to process
+     * @param outdir output folder
+     * @return true if all stages of all series finished
+     */
+    boolean processWithRetries(File file, File outdir) {
+        boolean complete = true;
+        for (Item item : items(file)) {
+            if (abort) return false;
+            complete &= processWithRetries(item, outdir);
+        }
+        return complete;
+    }
+
+    boolean processWithRetries(Item item, File outdir) {
+        String name = item.name;
+        double delay = backoff;
+        for (int attempt = 1; attempt <= retries+1; attempt++) {
+            int[] open = Interpreter.getBatchModeImageIDs();
+            try {
+                process(item, outdir);
+                return true;
+            } catch (Exception | OutOfMemoryError ex) {
+                String reason = ex.getClass().getSimpleName()+": "+ex.getMessage();
+                IJ.log("LysoQuant: "+name+" attempt "+attempt+" failed ("+reason+")");
+                try {
+                    journal.failed(name, null, stageOf(ex), reason);
+                } catch (IOException ioex) {
+                    IJ.log("LysoQuant: cannot write journal: "+ioex.getMessage());
+                }
+                closeOpenedSince(open);
+                if (abort) return false;
+                if (attempt <= retries) {
+                    IJ.showStatus("LysoQuant: retrying "+name+" in "+IJ.d2s(delay, 0)+" s");
+                    IJ.wait((int)(delay*1000));
+                    delay *= 2;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run the stages of one image series that are not done yet.
+     *
+     * @param item image series to process
+     * @param outdir output folder
+     * @throws Exception if a stage fails, wrapped in a StageException
+     */
+    void process(Item item, File outdir) throws Exception {
+        String name = item.name;
+        String base = item.base;
+        Roi[] cells = cells(item);
+
+        // Nothing to do
+        boolean finished = true;
+        for (Roi cell : cells) {
+            finished &= journal.isDone(name, cellID(cell), Journal.COUNT);
+        }
+        if (finished) return;
+
+        ImagePlus image = LazyInput.open(item.file.getPath(), item.series);
+        if (image == null)
+            throw new StageException(Journal.PREPROCESS, "cannot open image");
+
+        // Images are closed and the image recorded in the metrics on failure too,
+        // so that retries do not keep the pixels of failed attempts
+        LysoQuant lq = new LysoQuant();
+        lq.interactive = false;
+        lq.metrics = metrics;
+        lq.metrics.beginImage(name);
+        ImagePlus[] rgbs = null;
+        ImagePlus[] segmented = null;
+        boolean complete = false;
+        try {
+            if (!lq.setupFromPrefs(image))
+                throw new StageException(Journal.PREPROCESS, "channels not found");
+            int[] proteins = lq.proteins;
+            if (lq.triageEnabled) {
+                String[] cellIDs = new String[cells.length];
+                for (int i = 0; i < cells.length; i++) {
+                    cellIDs[i] = cellID(cells[i]);
+                }
+                lq.triage = new Triage(lq, image, cells, cellIDs);
+            }
+
+            // Preprocess, one U-Net input per channel pair
+            rgbs = openOutputs(journal.output(name, null, Journal.PREPROCESS), proteins.length);
+            if (rgbs == null) {
+                IJ.showStatus("LysoQuant: preprocessing "+name);
+                rgbs = lq.make_rgb(proteins, lq.ch_lyso, image, lq.firstZ, lq.lastZ, lq.firstT, lq.lastT);
+                Roi union = union(cells);
+                if (union != null) {
+                    LysoQuant.clearOutside(rgbs, union);
+                    for (ImagePlus rgb : rgbs) {
+                        rgb.deleteRoi();
+                    }
+                }
+                String[] rgbpaths = new String[rgbs.length];
+                for (int p = 0; p < rgbs.length; p++) {
+                    rgbpaths[p] = new File(outdir, base+pairSuffix(proteins, p)+"_rgb.tif").getPath();
+                    if (!IJ.saveAsTiff(rgbs[p], rgbpaths[p]))
+                        throw new StageException(Journal.PREPROCESS, "cannot save "+rgbpaths[p]);
+                }
+                checkAbort(Journal.PREPROCESS);
+                journal.done(name, null, Journal.PREPROCESS, joinPaths(rgbpaths));
+            }
+
+            // Segment all pairs in one U-Net job
+            segmented = openOutputs(journal.output(name, null, Journal.SEGMENT), proteins.length);
+            if (segmented != null) {
+                for (ImagePlus labels : segmented) {
+                    labels.setDimensions(1, lq.lastZ-lq.firstZ+1, lq.lastT-lq.firstT+1);
+                }
+                close(rgbs);
+            } else {
+                IJ.showStatus("LysoQuant: segmenting "+name);
+                segmented = lq.segment(rgbs, image.getTitle());
+                close(rgbs);
+                if (segmented == null)
+                    throw new StageException(Journal.SEGMENT, "no segmentation returned");
+                String[] lqpaths = new String[segmented.length];
+                for (int p = 0; p < segmented.length; p++) {
+                    lqpaths[p] = new File(outdir, base+pairSuffix(proteins, p)+"_LQ.tif").getPath();
+                    if (!IJ.saveAsTiff(segmented[p], lqpaths[p]))
+                        throw new StageException(Journal.SEGMENT, "cannot save "+lqpaths[p]);
+                }
+                checkAbort(Journal.SEGMENT);
+                journal.done(name, null, Journal.SEGMENT, joinPaths(lqpaths));
+            }
+
+            // Count, one summary file per cell with the rows of all pairs
+            double scale = (double) segmented[0].getWidth() / (double) image.getWidth();
+            for (Roi cell : cells) {
+                String cellID = cellID(cell);
+                if (journal.isDone(name, cellID, Journal.COUNT))
+                    continue;
+                IJ.showStatus("LysoQuant: counting "+name+" "+cellID);
+                lq.summary = new ResultsTable();
+                Roi scaled = cell == null ? null : LysoQuant.scaleRoi(cell, scale);
+                lq.count(segmented, proteins, image, cellID, scaled, lq.firstC, lq.lastC, lq.classValues(),
+                        lq.minSize, lq.display_values, lq.display_cargo, lq.cargo_thres);
+                if (lq.track && lq.lastT > lq.firstT) {
+                    lq.tracks = new ResultsTable();
+                    lq.trackSummary = new ResultsTable();
+                    lq.track(segmented, proteins, image, cellID, scaled);
+                    String trackpath = new File(outdir, base+"_"+cellID+"_tracks.csv").getPath();
+                    String trackSummarypath = new File(outdir, base+"_"+cellID+"_track_summary.csv").getPath();
+                    if (!lq.tracks.save(trackpath) || !lq.trackSummary.save(trackSummarypath))
+                        throw new StageException(Journal.COUNT, "cannot save "+trackpath);
+                }
+                String csvpath = new File(outdir, base+"_"+cellID+".csv").getPath();
+                if (!lq.summary.save(csvpath))
+                    throw new StageException(Journal.COUNT, "cannot save "+csvpath);
+                checkAbort(Journal.COUNT);
+                journal.done(name, cellID, Journal.COUNT, csvpath);
+            }
+
+            complete = true;
+        } finally {
+            close(rgbs);
+            close(segmented);
+            image.close();
+            lq.metrics.endImage(complete ? Metrics.COMPLETE : Metrics.FAILED);
+        }
+    }
+
+    /**
+     * @return end of the output file names of pair p, empty if there is a single pair
+     */
+    static String pairSuffix(int[] proteins, int p) {
+        return proteins.length == 1 ? "" : "_ch"+proteins[p];
+    }
+
+    /**
+     * Outputs of all pairs as one journal entry
+     */
+    static String joinPaths(String[] paths) {
+        StringBuilder joined = new StringBuilder();
+        for (String path : paths) {
+            if (joined.length() > 0) joined.append(File.pathSeparator);
+            joined.append(path);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Open the outputs of an image level stage recorded in the journal
+     *
+     * @param paths outputs of all pairs, see joinPaths, or null
+     * @param nPairs number of channel pairs of this run
+     * @return one image per pair, or null if the stage must be run again
+     */
+    static ImagePlus[] openOutputs(String paths, int nPairs) {
+        if (paths == null)
+            return null;
+        String[] files = paths.split(File.pathSeparator);
+        if (files.length != nPairs)
+            return null;
+        ImagePlus[] imps = new ImagePlus[nPairs];
+        for (int p = 0; p < nPairs; p++) {
+            imps[p] = new File(files[p]).exists() ? IJ.openImage(files[p]) : null;
+            if (imps[p] == null) {
+                close(imps);
+                return null;
+            }
+        }
+        return imps;
+    }
+
+    static void close(ImagePlus[] imps) {
+        if (imps == null) return;
+        for (ImagePlus imp : imps) {
+            if (imp != null) imp.close();
+        }
+    }
+
+    /**
+     * Stop before recording a stage whose output may be partial
+     *
+     * @param stage stage about to be recorded
+     * @throws StageException if the run was aborted or its thread interrupted
+     */
+    void checkAbort(String stage) throws StageException {
+        if (abort || Thread.currentThread().isInterrupted())
+            throw new StageException(stage, "aborted");
+    }
+
+    /**
+     * Collect the summary rows of all finished cells, in input order.
+     *
+     * @param files processed images
+     * @return merged summary table
+     */
+    ResultsTable merge(File[] files) {
+        ResultsTable merged = new ResultsTable();
+        for (File file : files) {
+            for (Item item : items(file)) {
+                Roi[] cells;
+                try {
+                    cells = cells(item);
+                } catch (IOException ex) {
+                    continue;
+                }
+                for (Roi cell : cells) {
+                    String csvpath = journal.output(item.name, cellID(cell), Journal.COUNT);
+                    if (csvpath == null) continue;
+                    try {
+                        appendRows(ResultsTable.open(csvpath), merged);
+                    } catch (IOException ex) {
+                        IJ.log("LysoQuant: cannot read "+csvpath);
+                    }
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Append all rows of a table to another, keeping labels and text values.
+     *
+     * @param from source table
+     * @param to destination table
+     */
+    static void appendRows(ResultsTable from, ResultsTable to) {
+        String[] headings = from.getHeadings();
+        for (int row = 0; row < from.size(); row++) {
+            to.incrementCounter();
+            for (String heading : headings) {
+                if (heading.equals("Label")) {
+                    to.addLabel(from.getStringValue(heading, row));
+                    continue;
+                }
+                double value = from.getValue(heading, row);
+                String text = from.getStringValue(heading, row);
+                if (Double.isNaN(value) && text != null && !text.equals("NaN"))
+                    to.addValue(heading, text);
+                else
+                    to.addValue(heading, value);
+            }
+        }
+    }
+
+    /**
+     * Image series contained in file, one work item each
+     *
+     * @param file image file
+     * @return items of the file
+     */
+    static ArrayList<Item> items(File file) {
+        ArrayList<Item> items = new ArrayList<Item>();
+        int nSeries = LazyInput.seriesCount(file.getPath());
+        for (int series = 0; series < nSeries; series++) {
+            items.add(new Item(file, series, nSeries));
+        }
+        return items;
+    }
+
+    /**
+     * Cells of an image series, from a RoiSet with the same base name
+     * (image.zip or image.roi, image_s2.zip for the second series...)
+     * in the same folder
+     *
+     * @param item image series
+     * @return ROIs of the cells, or a single null entry for the whole image
+     * @throws IOException if the RoiSet exists but cannot be read
+     */
+    static Roi[] cells(Item item) throws IOException {
+        String base = new File(item.file.getParentFile(), item.base).getPath();
+        for (String ext : new String[] {".zip", ".roi"}) {
+            File roifile = new File(base+ext);
+            if (!roifile.exists()) continue;
+            ArrayList<Roi> rois = new ArrayList<Roi>();
+            try {
+                if (ext.equals(".zip")) {
+                    readZip(roifile, rois);
+                } else {
+                    Roi roi = RoiDecoder.open(roifile.getPath());
+                    if (roi != null) rois.add(roi);
+                }
+            } catch (RuntimeException ex) {
+                throw new IOException("cannot read "+roifile.getName()+": "+ex);
+            }
+            if (rois.isEmpty())
+                throw new IOException("cannot read "+roifile.getName());
+            return rois.toArray(new Roi[rois.size()]);
+        }
+        return new Roi[] {null};
+    }
+
+    /**
+     * Read the ROIs of a RoiSet the way the ROI Manager does, without opening
+     * it: the ROI Manager is a window and cannot be created headless.
+     *
+     * @param zipfile RoiSet
+     * @param rois list the ROIs are added to, in file order
+     * @throws IOException if the file cannot be read
+     */
+    static void readZip(File zipfile, ArrayList<Roi> rois) throws IOException {
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zipfile));
+        try {
+            byte[] buf = new byte[1024];
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                String name = entry.getName();
+                if (!name.endsWith(".roi")) continue;
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int len;
+                while ((len = in.read(buf)) > 0) {
+                    out.write(buf, 0, len);
+                }
+                Roi roi = new RoiDecoder(out.toByteArray(), name).getRoi();
+                if (roi == null) continue;
+                if (roi.getName() == null)
+                    roi.setName(name.substring(0, name.length()-4));
+                rois.add(roi);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Cell ID as used by LysoQuant: ROI name, ROI position, or 0000-0000 for the whole image
+     *
+     * @param cell ROI of the cell, or null
+     * @return cell ID
+     */
+    static String cellID(Roi cell) {
+        if (cell == null)
+            return "0000-0000";
+        if (cell.getName() != null)
+            return cell.getName();
+        Rectangle bounds = cell.getBounds();
+        return IJ.pad(bounds.x,4)+"-"+IJ.pad(bounds.y,4);
+    }
+
+    static Roi union(Roi[] cells) {
+        if (cells.length == 1)
+            return cells[0];
+        ShapeRoi union = new ShapeRoi(cells[0]);
+        for (int i = 1; i < cells.length; i++) {
+            union.or(new ShapeRoi(cells[i]));
+        }
+        return union;
+    }
+
+    static String baseName(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    static String stageOf(Throwable ex) {
+        return ex instanceof StageException ? ((StageException)ex).stage : Journal.COUNT;
+    }
+
+    /**
+     * Close the batch mode images left open by a failed attempt
+     *
+     * @param before IDs of the batch mode images open before the attempt
+     */
+    static void closeOpenedSince(int[] before) {
+        int[] ids = Interpreter.getBatchModeImageIDs();
+        if (ids == null) return;
+        if (before == null) before = new int[0];
+        for (int id : ids) {
+            boolean old = false;
+            for (int b : before) {
+                old |= b == id;
+            }
+            ImagePlus imp = WindowManager.getImage(id);
+            if (!old && imp != null) imp.close();
+        }
+    }
+
+    private boolean showDialog() {
+        GenericDialog gd = new GenericDialog("LysoQuant Batch");
+        gd.addStringField("Input folder: ", Prefs.get("lysoquant.batch.input", ""), 50);
+        gd.addStringField("Output folder: ", Prefs.get("lysoquant.batch.output", ""), 50);
+        gd.addStringField("File extension: ", Prefs.get("lysoquant.batch.extension", ".tif"), 10);
+        gd.addNumericField("Retries per image: ", Prefs.get("lysoquant.batch.retries", 3), 0);
+        gd.addNumericField("Retry backoff (s): ", Prefs.get("lysoquant.batch.backoff", 30), 0);
+        gd.addMessage("Channels and measurements are taken from the last LysoQuant run.\n"
+                + "Finished stages recorded in the output folder are skipped.");
+
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return false;
+
+        inputFolder = gd.getNextString();
+        outputFolder = gd.getNextString();
+        extension = gd.getNextString().toLowerCase();
+        retries = (int)gd.getNextNumber();
+        if (retries < 0) retries = 0;
+        backoff = gd.getNextNumber();
+        if (backoff < 0) backoff = 0;
+
+        Prefs.set("lysoquant.batch.input", inputFolder);
+        Prefs.set("lysoquant.batch.output", outputFolder);
+        Prefs.set("lysoquant.batch.extension", extension);
+        Prefs.set("lysoquant.batch.retries", retries);
+        Prefs.set("lysoquant.batch.backoff", backoff);
+
+        return true;
+    }
+
+    /**
+     * One series of an image file. Files with a single series keep their file
+     * name, so journals and outputs do not change for plain TIFF files.
+     */
+    static class Item {
+        final File file;
+        final int series;
+        final String name; // key in the journal
+        final String base; // prefix of the output files
+
+        Item(File file, int series, int nSeries) {
+            this.file = file;
+            this.series = series;
+            if (nSeries > 1) {
+                name = file.getName()+" #"+(series+1);
+                base = baseName(file.getName())+"_s"+(series+1);
+            } else {
+                name = file.getName();
+                base = baseName(file.getName());
+            }
+        }
+    }
+
+    /**
+     * Failure of a batch stage, recorded in the journal under that stage
+     */
+    static class StageException extends Exception {
+        private static final long serialVersionUID = 1L;
+        final String stage;
+
+        StageException(String stage, String message) {
+            super(message);
+            this.stage = stage;
+        }
+    }
+}
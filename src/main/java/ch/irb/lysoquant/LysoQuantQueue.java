@@ -0,0 +1,501 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.Prefs;
+import ij.macro.Interpreter;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Distributed batch mode over a shared folder, without a coordinator.
+ * Several LysoQuant workers, each with its own U-Net backend settings, take
+ * images from the same input folder. An image is claimed by atomically
+ * creating a lease file in output/queue; the lease is refreshed while the
+ * image is processed and can be taken over by another worker once it is older
+ * than the lease timeout. Each worker writes to its own shard folder
+ * output/shards/worker with the same layout and journal as LysoQuantBatch.
+ * The last worker to find the queue drained merges the shards into
+ * output/LysoQuant_summary.csv.
+ *
+ * Headless usage, one process per worker:
+ *
+ *   java -cp ij.jar:LysoQuant.jar:Unet_Segmentation.jar ch.irb.lysoquant.LysoQuantQueue input output [worker]
+ *
+ * @author Diego Morone
+ */
+public class LysoQuantQueue implements PlugIn {
+
+    static final String QUEUE = "queue";
+    static final String SHARDS = "shards";
+    static final String LEASE = ".lease";
+    static final String DONE = ".done";
+    static final String FAILED = ".failed";
+
+    String inputFolder;
+    String outputFolder;
+    String extension = ".tif";
+    String worker = defaultWorker();
+    int retries = 3;
+    double backoff = 30; // seconds
+    long leaseTimeout = 30*60*1000; // milliseconds without heartbeat before a lease can be taken over
+    boolean retryFailed = false;
+
+    @Override
+    public void run(String arg) {
+
+        if (!showDialog()) return;
+
+        boolean batchMode = Interpreter.isBatchMode();
+        Interpreter.batchMode = true;
+        try {
+            work();
+        } catch (IOException ex) {
+            IJ.error("LysoQuant Queue", ex.getMessage());
+        } finally {
+            Interpreter.batchMode = batchMode;
+        }
+    }
+
+    /**
+     * Process images until none is left to claim, then merge if the queue is drained.
+     *
+     * @throws IOException if the shared folders cannot be used
+     */
+    void work() throws IOException {
+        File indir = new File(inputFolder);
+        File outdir = new File(outputFolder);
+        File queue = new File(outdir, QUEUE);
+        File shard = new File(new File(outdir, SHARDS), worker);
+        if (!indir.isDirectory())
+            throw new IOException("Folder not found: "+inputFolder);
+        if (!queue.isDirectory() && !queue.mkdirs() || !shard.isDirectory() && !shard.mkdirs())
+            throw new IOException("Cannot create folders in "+outputFolder);
+
+        LysoQuantBatch batch = newBatch();
+        batch.journal = new Journal(new File(shard, LysoQuantBatch.JOURNAL));
+        batch.retries = retries;
+        batch.backoff = backoff;
+
+        File[] files = LysoQuantBatch.images(indir, extension);
+        if (retryFailed)
+            retry(queue, files, System.currentTimeMillis());
+        IJ.log("LysoQuant: worker "+worker+" started on "+files.length+" images");
+        int processed = 0;
+        for (File file : files) {
+            String name = file.getName();
+            File lease = new File(queue, name+LEASE);
+            if (!claim(queue, name, worker, leaseTimeout))
+                continue;
+
+            batch.abort = false;
+            Heartbeat heartbeat = new Heartbeat(lease, worker, leaseTimeout/4, batch);
+            heartbeat.start();
+            boolean ok;
+            try {
+                ok = batch.processWithRetries(file, shard);
+            } finally {
+                heartbeat.finish();
+            }
+            if (heartbeat.lost) {
+                // The image now belongs to another worker, leave it alone
+                Thread.interrupted();
+                continue;
+            }
+            mark(new File(queue, name+(ok ? DONE : FAILED)), worker);
+            release(lease, worker);
+            processed++;
+        }
+        IJ.log("LysoQuant: worker "+worker+" processed "+processed+" images");
+        batch.metrics.save(shard);
+
+        if (drained(queue, files)) {
+            File summary = new File(outdir, LysoQuantBatch.SUMMARY);
+            // ResultsTable picks the delimiter from the extension: keep .csv
+            File tmp = new File(outdir, "."+worker+"."+LysoQuantBatch.SUMMARY);
+            if (!merge(new File(outdir, SHARDS), files).save(tmp.getPath()))
+                throw new IOException("Cannot save "+tmp);
+            Files.move(tmp.toPath(), summary.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            IJ.log("LysoQuant: queue drained, summary written to "+summary);
+        }
+    }
+
+    LysoQuantBatch newBatch() {
+        return new LysoQuantBatch();
+    }
+
+    /**
+     * Remove the failed markers written before this worker started, so that
+     * their images are claimed again. Images failing again during this run
+     * keep their new marker and are not retried twice.
+     *
+     * @param queue lease and marker folder
+     * @param files all work items
+     * @param start start time of this worker
+     */
+    static void retry(File queue, File[] files, long start) {
+        int n = 0;
+        for (File file : files) {
+            File marker = new File(queue, file.getName()+FAILED);
+            if (marker.exists() && marker.lastModified() < start && marker.delete())
+                n++;
+        }
+        if (n > 0)
+            IJ.log("LysoQuant: retrying "+n+" failed images");
+    }
+
+    /**
+     * Claim a work item that is not finished yet. The markers are checked
+     * again once the lease is held: another worker may have finished the item
+     * and released its lease between the first check and the claim.
+     *
+     * @param queue lease and marker folder
+     * @param name file name of the work item
+     * @param worker ID written in the lease
+     * @param timeout lease age in ms after which it is considered abandoned
+     * @return true if the item is now held by worker
+     */
+    static boolean claim(File queue, String name, String worker, long timeout) throws IOException {
+        if (finished(queue, name))
+            return false;
+        File lease = new File(queue, name+LEASE);
+        if (!acquire(lease, worker, timeout))
+            return false;
+        if (finished(queue, name)) {
+            release(lease, worker);
+            return false;
+        }
+        return true;
+    }
+
+    static boolean finished(File queue, String name) {
+        return new File(queue, name+DONE).exists() || new File(queue, name+FAILED).exists();
+    }
+
+    /**
+     * Try to claim a work item. Creating the lease file is atomic, so only one
+     * worker can succeed. A lease not refreshed within timeout is taken over.
+     *
+     * @param lease lease file of the work item
+     * @param worker ID written in the lease
+     * @param timeout lease age in ms after which it is considered abandoned
+     * @return true if the lease is now held by worker
+     */
+    static boolean acquire(File lease, String worker, long timeout) throws IOException {
+        try {
+            Files.write(lease.toPath(), worker.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException ex) {
+            if (System.currentTimeMillis() - lease.lastModified() < timeout)
+                return false;
+        }
+
+        // Abandoned lease: move it away, only one worker wins the rename
+        File stale = new File(lease.getPath()+"."+worker+".stale");
+        try {
+            Files.move(lease.toPath(), stale.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            return false;
+        }
+        // Another worker took over in the meantime and we moved its fresh lease:
+        // give it back. If it cannot, its owner's heartbeat finds it lost and stops.
+        if (System.currentTimeMillis() - stale.lastModified() < timeout) {
+            giveBack(stale, lease);
+            return false;
+        }
+        IJ.log("LysoQuant: taking over abandoned "+lease.getName()+" ("+owner(stale)+")");
+        stale.delete();
+
+        try {
+            Files.write(lease.toPath(), worker.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Put a lease moved away by mistake back in place, without replacing a
+     * lease created since then: linking fails if the target exists.
+     *
+     * @param stale the moved lease, deleted afterwards
+     * @param lease original lease file
+     * @return true if the lease was put back
+     */
+    static boolean giveBack(File stale, File lease) {
+        boolean ok;
+        try {
+            Files.createLink(lease.toPath(), stale.toPath());
+            ok = true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            // lease taken by a third worker, or links not supported by the file system
+            ok = false;
+        }
+        stale.delete();
+        return ok;
+    }
+
+    static void release(File lease, String worker) {
+        if (worker.equals(owner(lease)))
+            lease.delete();
+    }
+
+    static String owner(File lease) {
+        try {
+            return new String(Files.readAllBytes(lease.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    static void mark(File marker, String worker) throws IOException {
+        Files.write(marker.toPath(), worker.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param queue lease and marker folder
+     * @param files all work items
+     * @return true if every item is done or failed
+     */
+    static boolean drained(File queue, File[] files) {
+        for (File file : files) {
+            if (!finished(queue, file.getName()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Merge the summary rows of all shards, in input order. If an image was
+     * processed by more than one worker (taken-over lease), the first shard wins.
+     *
+     * @param shards folder containing one folder per worker
+     * @param files all work items
+     * @return merged summary table, same schema as the LysoQuant window
+     */
+    static ResultsTable merge(File shards, File[] files) throws IOException {
+        File[] dirs = shards.listFiles();
+        if (dirs == null) dirs = new File[0];
+        Arrays.sort(dirs);
+        ArrayList<Journal> journals = new ArrayList<Journal>();
+        for (File dir : dirs) {
+            File journal = new File(dir, LysoQuantBatch.JOURNAL);
+            if (journal.exists())
+                journals.add(new Journal(journal));
+        }
+
+        ResultsTable merged = new ResultsTable();
+        for (File file : files) {
+            for (LysoQuantBatch.Item item : LysoQuantBatch.items(file)) {
+                Roi[] cells;
+                try {
+                    cells = LysoQuantBatch.cells(item);
+                } catch (IOException ex) {
+                    continue;
+                }
+                for (Roi cell : cells) {
+                    String cellID = LysoQuantBatch.cellID(cell);
+                    for (Journal journal : journals) {
+                        String csvpath = journal.output(item.name, cellID, Journal.COUNT);
+                        if (csvpath == null) continue;
+                        LysoQuantBatch.appendRows(ResultsTable.open(csvpath), merged);
+                        break;
+                    }
+                }
+            }
+        }
+        return merged;
+    }
+
+    static String defaultWorker() {
+        // pid@hostname
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        return sanitize(name);
+    }
+
+    /**
+     * The worker ID names the shard folder and the leases: keep it to a
+     * single safe path component.
+     */
+    static String sanitize(String worker) {
+        String id = worker.replaceAll("[^A-Za-z0-9._@-]", "_");
+        if (id.matches("\\.*")) // empty, . or ..
+            return "_"+id.replace('.', '_');
+        return id;
+    }
+
+    private boolean showDialog() {
+        GenericDialog gd = new GenericDialog("LysoQuant Queue Worker");
+        gd.addStringField("Input folder: ", Prefs.get("lysoquant.batch.input", ""), 50);
+        gd.addStringField("Output folder: ", Prefs.get("lysoquant.batch.output", ""), 50);
+        gd.addStringField("File extension: ", Prefs.get("lysoquant.batch.extension", ".tif"), 10);
+        gd.addStringField("Worker ID: ", worker, 30);
+        gd.addNumericField("Retries per image: ", Prefs.get("lysoquant.batch.retries", 3), 0);
+        gd.addNumericField("Retry backoff (s): ", Prefs.get("lysoquant.batch.backoff", 30), 0);
+        gd.addNumericField("Lease timeout (min): ", Prefs.get("lysoquant.queue.timeout", 30), 0);
+        gd.addCheckbox("Retry failed images", Prefs.get("lysoquant.queue.retryfailed", false));
+
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return false;
+
+        inputFolder = gd.getNextString();
+        outputFolder = gd.getNextString();
+        extension = gd.getNextString().toLowerCase();
+        worker = sanitize(gd.getNextString());
+        retries = Math.max(0, (int)gd.getNextNumber());
+        backoff = Math.max(0, gd.getNextNumber());
+        double timeout = Math.max(1, gd.getNextNumber());
+        leaseTimeout = (long)(timeout*60*1000);
+        retryFailed = gd.getNextBoolean();
+
+        Prefs.set("lysoquant.batch.input", inputFolder);
+        Prefs.set("lysoquant.batch.output", outputFolder);
+        Prefs.set("lysoquant.batch.extension", extension);
+        Prefs.set("lysoquant.batch.retries", retries);
+        Prefs.set("lysoquant.batch.backoff", backoff);
+        Prefs.set("lysoquant.queue.timeout", timeout);
+        Prefs.set("lysoquant.queue.retryfailed", retryFailed);
+
+        return true;
+    }
+
+    /**
+     * Keeps a lease fresh while its image is processed. If the lease was
+     * taken over by another worker, processing is stopped before the next
+     * stage is recorded: the worker thread is interrupted and the batch aborted.
+     */
+    static class Heartbeat extends Thread {
+        final File lease;
+        final String worker;
+        final long period;
+        final LysoQuantBatch batch;
+        final Thread processing;
+        volatile boolean lost;
+        private boolean finished;
+
+        Heartbeat(File lease, String worker, long period, LysoQuantBatch batch) {
+            this.lease = lease;
+            this.worker = worker;
+            this.period = Math.max(period, 1000);
+            this.batch = batch;
+            this.processing = Thread.currentThread();
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (!worker.equals(owner(lease))) {
+                    stopProcessing();
+                    return;
+                }
+                lease.setLastModified(System.currentTimeMillis());
+            }
+        }
+
+        private synchronized void stopProcessing() {
+            if (finished) return;
+            IJ.log("LysoQuant: lost "+lease.getName()+" to another worker, stopping");
+            lost = true;
+            batch.abort = true;
+            processing.interrupt();
+        }
+
+        /**
+         * Stop the heartbeat once processing is over. After this returns,
+         * the processing thread is not interrupted anymore.
+         */
+        synchronized void finish() {
+            finished = true;
+            interrupt();
+        }
+    }
+
+    /**
+     * Headless worker. Channels, measurements and U-Net backend are read from
+     * the IJ_Prefs of the user running the process.
+     *
+     * @param args input folder, output folder, optional worker ID
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: LysoQuantQueue input-folder output-folder [worker-id]");
+            System.exit(2);
+        }
+        LysoQuantQueue queue = new LysoQuantQueue();
+        // No ImageJ instance: read IJ_Prefs.txt ourselves
+        String error = Prefs.load(queue, null);
+        if (error != null)
+            System.err.println(error);
+        queue.inputFolder = args[0];
+        queue.outputFolder = args[1];
+        if (args.length > 2)
+            queue.worker = sanitize(args[2]);
+        queue.extension = Prefs.get("lysoquant.batch.extension", ".tif");
+        queue.retries = (int)Prefs.get("lysoquant.batch.retries", 3);
+        queue.backoff = Prefs.get("lysoquant.batch.backoff", 30);
+        queue.leaseTimeout = (long)(Prefs.get("lysoquant.queue.timeout", 30)*60*1000);
+        queue.retryFailed = Prefs.get("lysoquant.queue.retryfailed", false);
+
+        Interpreter.batchMode = true;
+        try {
+            queue.work();
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
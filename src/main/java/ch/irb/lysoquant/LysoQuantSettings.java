@@ -149,6 +149,14 @@ public class LysoQuantSettings implements PlugIn {
         }
 
         String minsize = Prefs.get("lysoquant.minsize", "0.53");
+        String reportfolder = Prefs.get("lysoquant.reportfolder", "");
+        Boolean autotune = Boolean.parseBoolean(Prefs.get("lysoquant.autotune", "true"));
+        String tuned = Prefs.get(LysoQuantAutotune.key(), "");
+        String augment = Prefs.get("lysoquant.augment", TestTimeAugmentation.NONE);
+        String confidence = Prefs.get("lysoquant.confidence", "0.7");
+        Boolean triage = Boolean.parseBoolean(Prefs.get("lysoquant.triage", "false"));
+        String triagesignal = Prefs.get("lysoquant.triage.signal", "5");
+        String triagefocus = Prefs.get("lysoquant.triage.focus", "0");
 
         // Create interface
         gd.addMessage("LysoQuant - v" + VERSION);
@@ -162,9 +170,16 @@ public class LysoQuantSettings implements PlugIn {
         gd.addStringField("U-Net key: ", key, 50);
         gd.addChoice("U-Net GPU: ", gpuList, gpuflag);
         gd.addStringField("U-Net tile size: ", tilesize);
+        gd.addCheckbox("Use autotuned tile size"+(tuned.isEmpty() ? " (none yet)" : " ("+tuned+")"), autotune);
+        gd.addChoice("U-Net test-time augmentation: ", TestTimeAugmentation.MODES, augment);
+        gd.addStringField("Adaptive augmentation confidence (0-1): ", confidence);
         gd.addStringField("U-Net process folder: ", processfolder, 50);
         gd.addStringField("Filter min size: ", minsize);
         gd.addCheckbox("Display 3D warning", display_warning);
+        gd.addCheckbox("Triage before segmentation", triage);
+        gd.addStringField("Triage signal threshold (SD): ", triagesignal);
+        gd.addStringField("Triage min sharpness (0 for none): ", triagefocus);
+        gd.addStringField("Run report folder (empty for none): ", reportfolder, 50);
 
 		gd.showDialog();
 		if (gd.wasCanceled())
@@ -181,9 +196,16 @@ public class LysoQuantSettings implements PlugIn {
         key = gd.getNextString();
         gpuflag = gd.getNextChoice();
         tilesize = gd.getNextString();
+        autotune = gd.getNextBoolean();
+        augment = gd.getNextChoice();
+        confidence = gd.getNextString();
         processfolder = gd.getNextString();
         minsize = gd.getNextString();
         display_warning = gd.getNextBoolean();
+        triage = gd.getNextBoolean();
+        triagesignal = gd.getNextString();
+        triagefocus = gd.getNextString();
+        reportfolder = gd.getNextString();
 
         // Store new prefs
         Prefs.set("lysoquant.username", username);
@@ -192,13 +214,20 @@ public class LysoQuantSettings implements PlugIn {
         Prefs.set("lysoquant.minsize", minsize);
         Prefs.set("lysoquant.model", model);
         Prefs.set("lysoquant.tilesize", tilesize);
+        Prefs.set("lysoquant.autotune", Boolean.toString(autotune));
         Prefs.set("lysoquant.weights", weights);
+        Prefs.set("lysoquant.augment", augment);
+        Prefs.set("lysoquant.confidence", confidence);
         Prefs.set("lysoquant.gpuflag", gpuflag);
         Prefs.set("lysoquant.remotehost", Boolean.toString(remotehost));
         Prefs.set("lysoquant.server", server);
         Prefs.set("lysoquant.port", port);
         Prefs.set("lysoquant.processfolder", processfolder);
         Prefs.set("lysoquant.display_warning", Boolean.toString(display_warning));
+        Prefs.set("lysoquant.triage", Boolean.toString(triage));
+        Prefs.set("lysoquant.triage.signal", triagesignal);
+        Prefs.set("lysoquant.triage.focus", triagefocus);
+        Prefs.set("lysoquant.reportfolder", reportfolder);
 
         return true;
     }
@@ -0,0 +1,206 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package ch.irb.lysoquant;
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.Prefs;
+import ij.macro.Interpreter;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Watch folder mode for live acquisitions.
+ * Polls a folder for new images, or for new frames appended to an image,
+ * and runs them through LysoQuant one frame at a time, so that summary rows
+ * are appended while the acquisition is still running.
+ * Channels and measurement options are those of the last LysoQuant run.
+ *
+ * @author Diego Morone
+ */
+public class LysoQuantWatch implements PlugIn {
+
+    String folder;
+    String extension;
+    int interval; // in seconds
+
+    // Size and modification time at the last poll, to detect files still being written
+    HashMap<String, Long> lastSize = new HashMap<String, Long>();
+    HashMap<String, Long> lastModified = new HashMap<String, Long>();
+    // Number of frames already analyzed for each file, and file size at that time
+    HashMap<String, Integer> doneFrames = new HashMap<String, Integer>();
+    HashMap<String, Long> doneSize = new HashMap<String, Long>();
+    // File size at the last failed analysis, so that it is retried only once the file changes
+    HashMap<String, Long> failedSize = new HashMap<String, Long>();
+    Metrics metrics = Metrics.run();
+
+    @Override
+    public void run(String arg) {
+
+        if (!showDialog()) return;
+
+        File dir = new File(folder);
+        if (!dir.isDirectory()) {
+            IJ.error("LysoQuant Watch", "Folder not found:\n"+folder);
+            return;
+        }
+
+        IJ.log("LysoQuant: watching "+folder+" (press Esc to stop)");
+        IJ.resetEscape();
+        boolean batchMode = Interpreter.isBatchMode();
+        Interpreter.batchMode = true;
+        try {
+            while (!IJ.escapePressed()) {
+                poll(dir);
+                IJ.showStatus("LysoQuant: watching "+folder+" (press Esc to stop)");
+                for (int i=0; i<interval*10 && !IJ.escapePressed(); i++) {
+                    IJ.wait(100);
+                }
+            }
+        } finally {
+            Interpreter.batchMode = batchMode;
+        }
+        IJ.log("LysoQuant: stopped watching "+folder);
+        LysoQuant lq = new LysoQuant();
+        lq.metrics = metrics;
+        lq.saveReport();
+        IJ.showStatus("");
+    }
+
+    /**
+     * Check the folder once and analyze new frames. Files whose size and
+     * modification time did not change since the last poll are analyzed to
+     * the end; files still growing are analyzed up to their second to last
+     * frame, since the last one may still be incomplete.
+     *
+     * @param dir the watched folder
+     */
+    void poll(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+
+        for (File file : files) {
+            if (IJ.escapePressed()) return;
+            if (!file.isFile() || !file.getName().toLowerCase().endsWith(extension)) continue;
+
+            String path = file.getAbsolutePath();
+            long size = file.length();
+            long modified = file.lastModified();
+            Long oldSize = lastSize.put(path, size);
+            Long oldModified = lastModified.put(path, modified);
+
+            // Seen for the first time, the header may not be written yet
+            if (oldSize == null) continue;
+            boolean growing = oldSize != size || oldModified != modified;
+
+            // Unchanged since it was last analyzed, or since it last failed
+            Long analyzedSize = doneSize.get(path);
+            if (!growing && analyzedSize != null && analyzedSize == size) continue;
+            Long failed = failedSize.get(path);
+            if (failed != null && failed == size) continue;
+
+            try {
+                if (analyze(file, !growing) && !growing) doneSize.put(path, size);
+            } catch (Exception e) {
+                IJ.log("LysoQuant: could not analyze "+file.getName()+": "+e);
+                failedSize.put(path, size);
+            }
+        }
+    }
+
+    /**
+     * Open file and analyze the frames not analyzed yet.
+     *
+     * @param file image to analyze
+     * @param complete whether the file is complete; if not, the last frame is left out
+     * @return true if all frames up to the last complete one were analyzed
+     */
+    boolean analyze(File file, boolean complete) {
+        String path = file.getAbsolutePath();
+        int done = doneFrames.containsKey(path) ? doneFrames.get(path) : 0;
+
+        ImagePlus image = LazyInput.open(path, 0);
+        if (image == null) {
+            IJ.log("LysoQuant: could not open "+file.getName());
+            return false;
+        }
+
+        try {
+            LysoQuant lq = new LysoQuant();
+            lq.interactive = false;
+            lq.metrics = metrics;
+            if (!lq.setupFromPrefs(image)) return false;
+
+            int last = complete ? lq.nFrames : lq.nFrames-1;
+            for (int t = done+1; t <= last; t++) {
+                if (IJ.escapePressed()) return false;
+                IJ.showStatus("LysoQuant: "+file.getName()+" frame "+t+"/"+lq.nFrames);
+                lq.firstT = t;
+                lq.lastT = t;
+                lq.analyze(image, null, null);
+                doneFrames.put(path, t);
+            }
+            return true;
+        } finally {
+            image.close();
+        }
+    }
+
+    private boolean showDialog() {
+        GenericDialog gd = new GenericDialog("LysoQuant Watch Folder");
+        gd.addStringField("Folder: ", Prefs.get("lysoquant.watch.folder", ""), 50);
+        gd.addStringField("File extension: ", Prefs.get("lysoquant.watch.extension", ".tif"), 10);
+        gd.addNumericField("Poll interval (s): ", Prefs.get("lysoquant.watch.interval", 10), 0);
+        gd.addMessage("Channels and measurements are taken from the last LysoQuant run.");
+
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return false;
+
+        folder = gd.getNextString();
+        extension = gd.getNextString().toLowerCase();
+        interval = (int)gd.getNextNumber();
+        if (interval < 1) interval = 1;
+
+        Prefs.set("lysoquant.watch.folder", folder);
+        Prefs.set("lysoquant.watch.extension", extension);
+        Prefs.set("lysoquant.watch.interval", interval);
+
+        return true;
+    }
+}
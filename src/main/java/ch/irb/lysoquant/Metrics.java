@@ -0,0 +1,421 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-stage timing and throughput of LysoQuant runs.
+ * Stage latencies are kept in histograms with power of two buckets (in
+ * microseconds), so recording is cheap and memory does not grow with the
+ * number of objects. Per image, the peak heap usage is read from the memory
+ * pools, reset when the image starts.
+ * The metrics of the JVM are exposed through JMX and accumulate over all
+ * runs; each run records into its own instance, saved as its run report,
+ * which adds everything to the JVM metrics too.
+ *
+ * @author Diego Morone
+ */
+public class Metrics implements MetricsMBean {
+
+    public static final String PREPROCESS = "make_rgb";
+    public static final String SEGMENT = "segment";
+    public static final String AUGMENT = "augment";
+    public static final String LABEL = "label";
+    public static final String MEASURE = "measure";
+    public static final String OVERLAY = "overlay";
+    public static final String SHOW = "show";
+    public static final String TRACK = "track";
+
+    static final String[] STAGES = {PREPROCESS, SEGMENT, AUGMENT, LABEL, MEASURE, OVERLAY, SHOW, TRACK};
+    static final int BUCKETS = 40; // 2^40 us, about 12 days
+
+    // Status of an image in the image table
+    public static final String COMPLETE = "complete";
+    public static final String FAILED = "failed";
+
+    public static final String REPORT = "LysoQuant_metrics.csv";
+    public static final String IMAGE_REPORT = "LysoQuant_images.csv";
+
+    private static Metrics instance;
+
+    final Metrics parent; // JVM metrics, null for the JVM metrics themselves
+
+    long[][] histograms = new long[STAGES.length][BUCKETS];
+    long[] counts = new long[STAGES.length];
+    long[] totals = new long[STAGES.length]; // ns
+    long[] maxima = new long[STAGES.length]; // ns
+
+    long images;
+    long objects;
+    long pixels;
+    long lastPeak;
+    long maxPeak;
+
+    // Current image
+    String image;
+    long imageStart;
+    long imageObjects;
+    long imagePixels;
+    ResultsTable imageTable = new ResultsTable();
+
+    Metrics() {
+        this(null);
+    }
+
+    private Metrics(Metrics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @return the metrics of this JVM, registered with JMX on first use
+     */
+    public static synchronized Metrics get() {
+        if (instance == null) {
+            instance = new Metrics();
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(instance, new ObjectName("ch.irb.lysoquant:type=Metrics"));
+            } catch (Exception ex) {
+                IJ.log("LysoQuant: metrics not available through JMX ("+ex+")");
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return new metrics for a single run, also added to the metrics of this JVM
+     */
+    public static Metrics run() {
+        return new Metrics(get());
+    }
+
+    /**
+     * Record the duration of one stage execution
+     *
+     * @param stage one of the stage names
+     * @param start System.nanoTime() at the start of the stage
+     */
+    public void record(String stage, long start) {
+        long elapsed = System.nanoTime() - start;
+        add(index(stage), elapsed);
+        if (parent != null)
+            parent.add(index(stage), elapsed);
+    }
+
+    private synchronized void add(int i, long elapsed) {
+        counts[i]++;
+        totals[i] += elapsed;
+        maxima[i] = Math.max(maxima[i], elapsed);
+        long micros = elapsed / 1000;
+        int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        histograms[i][Math.min(bucket, BUCKETS-1)]++;
+    }
+
+    public void addObjects(long n) {
+        synchronized (this) {
+            objects += n;
+            imageObjects += n;
+        }
+        if (parent != null)
+            parent.addObjects(n);
+    }
+
+    public void addPixels(long n) {
+        synchronized (this) {
+            pixels += n;
+            imagePixels += n;
+        }
+        if (parent != null)
+            parent.addPixels(n);
+    }
+
+    /**
+     * Start the metrics of one image, resetting the peak memory of the heap pools
+     *
+     * @param name image name
+     */
+    public synchronized void beginImage(String name) {
+        image = name;
+        imageStart = System.nanoTime();
+        imageObjects = 0;
+        imagePixels = 0;
+        resetHeapPeak();
+    }
+
+    /**
+     * Close the metrics of the current image and add them to the image table
+     */
+    public void endImage() {
+        endImage(COMPLETE);
+    }
+
+    /**
+     * Close the metrics of the current image and add them to the image table
+     *
+     * @param status COMPLETE, or FAILED if a stage failed
+     */
+    public void endImage(String status) {
+        String name;
+        double seconds;
+        long objects, pixels, peak;
+        synchronized (this) {
+            if (image == null) return;
+            name = image;
+            seconds = (System.nanoTime() - imageStart) / 1e9;
+            objects = imageObjects;
+            pixels = imagePixels;
+            peak = heapPeak();
+            image = null;
+        }
+        addImage(name, seconds, objects, pixels, peak, status);
+        if (parent != null)
+            parent.addImage(name, seconds, objects, pixels, peak, status);
+    }
+
+    private synchronized void addImage(String name, double seconds, long objects, long pixels, long peak, String status) {
+        images++;
+        lastPeak = peak;
+        maxPeak = Math.max(maxPeak, peak);
+
+        imageTable.incrementCounter();
+        imageTable.addLabel(name);
+        imageTable.addValue("Time (s)", seconds);
+        imageTable.addValue("Objects", objects);
+        imageTable.addValue("Pixels", pixels);
+        imageTable.addValue("Objects/s", objects / seconds);
+        imageTable.addValue("Pixels/s", pixels / seconds);
+        imageTable.addValue("Peak Memory (MB)", peak / (1024.0*1024.0));
+        imageTable.addValue("Status", status);
+    }
+
+    /**
+     * Reset the peak usage of the heap memory pools
+     */
+    static void resetHeapPeak() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * @return sum of the peak usage of the heap memory pools since the last reset, in bytes
+     */
+    static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * Stage table of the run report
+     *
+     * @return one row per stage
+     */
+    public synchronized ResultsTable stageTable() {
+        ResultsTable table = new ResultsTable();
+        for (int i = 0; i < STAGES.length; i++) {
+            table.incrementCounter();
+            table.addLabel(STAGES[i]);
+            table.addValue("Count", counts[i]);
+            table.addValue("Total (ms)", totals[i] / 1e6);
+            table.addValue("Mean (ms)", counts[i] == 0 ? 0 : totals[i] / 1e6 / counts[i]);
+            table.addValue("P50 (ms)", percentile(i, 0.50));
+            table.addValue("P95 (ms)", percentile(i, 0.95));
+            table.addValue("P99 (ms)", percentile(i, 0.99));
+            table.addValue("Max (ms)", maxima[i] / 1e6);
+        }
+        table.incrementCounter();
+        table.addLabel("run");
+        table.addValue("Count", images);
+        table.addValue("Objects", objects);
+        table.addValue("Pixels", pixels);
+        table.addValue("Objects/s", getObjectsPerSecond());
+        table.addValue("Pixels/s", getPixelsPerSecond());
+        table.addValue("Peak Memory (MB)", maxPeak / (1024.0*1024.0));
+        return table;
+    }
+
+    /**
+     * Save the run report (stages and images) to folder
+     *
+     * @param dir report folder
+     */
+    public synchronized void save(File dir) {
+        if (!stageTable().save(new File(dir, REPORT).getPath())
+                || !imageTable.save(new File(dir, IMAGE_REPORT).getPath()))
+            IJ.log("LysoQuant: cannot save metrics to "+dir);
+    }
+
+    /**
+     * Upper bound of the bucket containing the given fraction of the executions
+     */
+    double percentile(int stage, double fraction) {
+        long target = (long) Math.ceil(counts[stage] * fraction);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histograms[stage][b];
+            if (seen >= target && seen > 0)
+                return Math.min((1L << b) / 1000.0, maxima[stage] / 1e6);
+        }
+        return 0;
+    }
+
+    static int index(String stage) {
+        for (int i = 0; i < STAGES.length; i++) {
+            if (STAGES[i].equals(stage)) return i;
+        }
+        throw new IllegalArgumentException("Unknown stage "+stage);
+    }
+
+    double[] perStage(int what) {
+        double[] values = new double[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            switch (what) {
+                case 0: values[i] = totals[i] / 1e6; break;
+                case 1: values[i] = counts[i] == 0 ? 0 : totals[i] / 1e6 / counts[i]; break;
+                case 2: values[i] = percentile(i, 0.50); break;
+                case 3: values[i] = percentile(i, 0.95); break;
+                default: values[i] = maxima[i] / 1e6;
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public String[] getStages() {
+        return STAGES.clone();
+    }
+
+    @Override
+    public synchronized long[] getCounts() {
+        return counts.clone();
+    }
+
+    @Override
+    public synchronized double[] getTotalMillis() {
+        return perStage(0);
+    }
+
+    @Override
+    public synchronized double[] getMeanMillis() {
+        return perStage(1);
+    }
+
+    @Override
+    public synchronized double[] getP50Millis() {
+        return perStage(2);
+    }
+
+    @Override
+    public synchronized double[] getP95Millis() {
+        return perStage(3);
+    }
+
+    @Override
+    public synchronized double[] getMaxMillis() {
+        return perStage(4);
+    }
+
+    @Override
+    public synchronized long getImages() {
+        return images;
+    }
+
+    @Override
+    public synchronized long getObjects() {
+        return objects;
+    }
+
+    @Override
+    public synchronized long getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Objects counted per second of labeling and measurement
+     */
+    @Override
+    public synchronized double getObjectsPerSecond() {
+        long ns = totals[index(LABEL)] + totals[index(MEASURE)];
+        return ns == 0 ? 0 : objects / (ns / 1e9);
+    }
+
+    /**
+     * Pixels per second of preprocessing and segmentation, including augmentation
+     */
+    @Override
+    public synchronized double getPixelsPerSecond() {
+        long ns = totals[index(PREPROCESS)] + totals[index(SEGMENT)] + totals[index(AUGMENT)];
+        return ns == 0 ? 0 : pixels / (ns / 1e9);
+    }
+
+    @Override
+    public synchronized long getLastImagePeakMemory() {
+        return lastPeak;
+    }
+
+    @Override
+    public synchronized long getMaxImagePeakMemory() {
+        return maxPeak;
+    }
+
+    @Override
+    public synchronized void reset() {
+        histograms = new long[STAGES.length][BUCKETS];
+        counts = new long[STAGES.length];
+        totals = new long[STAGES.length];
+        maxima = new long[STAGES.length];
+        images = 0;
+        objects = 0;
+        pixels = 0;
+        lastPeak = 0;
+        maxPeak = 0;
+        image = null;
+        imageTable = new ResultsTable();
+    }
+}
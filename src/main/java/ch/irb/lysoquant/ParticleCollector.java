@@ -0,0 +1,78 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.process.ImageStatistics;
+
+import java.util.ArrayList;
+
+/**
+ * ParticleAnalyzer keeping the outline of every particle found, in the
+ * order they are found, instead of adding them to a (hidden) ROI Manager.
+ * The ROI Manager is an AWT window, so this also works headless.
+ *
+ * @author Diego Morone
+ */
+class ParticleCollector extends ParticleAnalyzer {
+
+    private final ArrayList<Roi> rois = new ArrayList<Roi>();
+
+    ParticleCollector(int options, int measurements, ResultsTable rt, double minSize, double maxSize, double minCirc, double maxCirc) {
+        super(options, measurements, rt, minSize, maxSize, minCirc, maxCirc);
+    }
+
+    @Override
+    protected void saveResults(ImageStatistics stats, Roi roi) {
+        rois.add(roi);
+    }
+
+    /**
+     * Forget the particles of the previous analyze() call
+     */
+    void clear() {
+        rois.clear();
+    }
+
+    int getCount() {
+        return rois.size();
+    }
+
+    Roi[] getRoisAsArray() {
+        return rois.toArray(new Roi[rois.size()]);
+    }
+}
@@ -0,0 +1,143 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.*;
+
+import java.awt.BorderLayout;
+import java.awt.Button;
+import java.awt.Frame;
+import java.awt.GraphicsEnvironment;
+import java.awt.Label;
+import java.awt.Panel;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+/**
+ * Progress of a LysoQuant run in a background thread.
+ * Shows the current stage in a small window and in the ImageJ status bar,
+ * the plane being counted in the progress bar, and cancels the run from
+ * the Cancel button or with Esc. Cancelling interrupts the worker thread,
+ * which stops a running U-Net job; measurement loops check cancelled().
+ *
+ * @author Diego Morone
+ */
+class Progress implements ActionListener {
+
+    final Thread worker;
+    volatile boolean cancelled;
+    Frame window;
+    Label label;
+
+    /**
+     * @param title of the window
+     * @param worker thread running the analysis
+     */
+    Progress(String title, Thread worker) {
+        this.worker = worker;
+        IJ.resetEscape();
+        if (GraphicsEnvironment.isHeadless())
+            return;
+
+        window = new Frame(title);
+        label = new Label("Starting...");
+        Button cancel = new Button("Cancel");
+        cancel.addActionListener(this);
+        Panel buttons = new Panel();
+        buttons.add(cancel);
+        window.add(label, BorderLayout.CENTER);
+        window.add(buttons, BorderLayout.SOUTH);
+        window.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                cancel();
+            }
+        });
+        window.setSize(360, 110);
+        ij.gui.GUI.center(window);
+        window.setVisible(true);
+    }
+
+    /**
+     * @param stage description of the current stage
+     */
+    void stage(String stage) {
+        if (label != null)
+            label.setText(stage);
+        IJ.showStatus("LysoQuant: "+stage);
+    }
+
+    /**
+     * @param plane current plane, from 1
+     * @param nPlanes number of planes
+     */
+    void plane(int plane, int nPlanes) {
+        IJ.showProgress(plane, nPlanes);
+    }
+
+    /**
+     * @return true if the run was cancelled, from the window or with Esc
+     */
+    boolean cancelled() {
+        if (!cancelled && IJ.escapePressed())
+            cancel();
+        return cancelled;
+    }
+
+    void cancel() {
+        if (cancelled) return;
+        cancelled = true;
+        if (label != null)
+            label.setText("Cancelling...");
+        worker.interrupt();
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        cancel();
+    }
+
+    /**
+     * Close the window and clear the status bar
+     */
+    void close() {
+        if (window != null)
+            window.dispose();
+        IJ.showProgress(1.0);
+        IJ.showStatus(cancelled ? "LysoQuant: cancelled" : "");
+    }
+}
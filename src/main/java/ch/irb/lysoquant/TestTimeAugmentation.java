@@ -0,0 +1,237 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.*;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+
+/**
+ * Adaptive test-time augmentation.
+ * After a single U-Net pass with softmax scores, the image is divided in
+ * tiles of the U-Net tile size and the tiles where the segmentation is not
+ * confident, i.e. where the mean margin between the two most probable
+ * classes (background, Empty, Loaded) on the segmented lysosomes and on the
+ * uncertain background, which may hide missed lysosomes, is below the
+ * confidence setting, are segmented again with mirror averaging.
+ * Only the labels of those tiles are replaced.
+ *
+ * @author Diego Morone
+ */
+class TestTimeAugmentation {
+
+    static final String NONE = "none";
+    static final String MIRROR = "mirror";
+    static final String ADAPTIVE = "adaptive";
+    static final String[] MODES = {NONE, MIRROR, ADAPTIVE};
+
+    static final int MIN_HALO = 16; // px of context around a re-segmented tile
+
+    final LysoQuant lq;
+    final int tile;
+    final int halo;
+    int nTiles;
+    int nRefined;
+
+    TestTimeAugmentation(LysoQuant lq) {
+        this.lq = lq;
+        int size;
+        try {
+            size = Integer.parseInt(lq.tilesize.trim());
+        } catch (NumberFormatException ex) {
+            size = 256;
+        }
+        tile = Math.max(1, size);
+        halo = Math.max(MIN_HALO, tile/4);
+    }
+
+    /**
+     * Re-segment the uncertain tiles of segmented with mirror averaging.
+     *
+     * @param rgb U-Net input
+     * @param segmented labels of the single pass, modified in place
+     * @param softmax softmax scores of the single pass, one channel per class
+     * @return false if segmentation of the uncertain tiles failed
+     * @throws InterruptedException if the segmentation was interrupted
+     */
+    boolean refine(ImagePlus rgb, ImagePlus segmented, ImagePlus softmax) throws InterruptedException {
+        int width = segmented.getWidth();
+        int height = segmented.getHeight();
+        int nPlanes = segmented.getStackSize();
+        int nClasses = softmax.getStackSize() / nPlanes;
+        if (softmax.getWidth() != width || softmax.getHeight() != height
+                || nClasses < 2 || nClasses * nPlanes != softmax.getStackSize()) {
+            IJ.log("LysoQuant: softmax scores do not match the segmentation, skipping adaptive augmentation");
+            return true;
+        }
+
+        // Uncertain tiles as {plane, x, y}
+        ArrayList<int[]> uncertain = new ArrayList<int[]>();
+        nTiles = 0;
+        for (int i = 0; i < nPlanes; i++) {
+            float[][] scores = new float[nClasses][];
+            for (int c = 0; c < nClasses; c++) {
+                scores[c] = (float[])softmax.getStack().getProcessor(i*nClasses + c + 1).convertToFloat().getPixels();
+            }
+            ImageProcessor labels = segmented.getStack().getProcessor(i+1);
+            for (int y = 0; y < height; y += tile) {
+                for (int x = 0; x < width; x += tile) {
+                    nTiles++;
+                    if (margin(scores, labels, x, y, width, height) < lq.confidence)
+                        uncertain.add(new int[] {i, x, y});
+                }
+            }
+        }
+        nRefined = uncertain.size();
+        if (uncertain.isEmpty())
+            return true;
+
+        // Crops with context, all the same size, segmented in a single run.
+        // U-Net rescales its input to the element size of the model, so tiles
+        // are cropped from rgb at its own resolution.
+        int rgbWidth = rgb.getWidth();
+        int rgbHeight = rgb.getHeight();
+        double scaleX = (double) width / (double) rgbWidth;
+        double scaleY = (double) height / (double) rgbHeight;
+        int cropWidth = Math.min(rgbWidth, (int) Math.ceil((tile + 2*halo) / scaleX));
+        int cropHeight = Math.min(rgbHeight, (int) Math.ceil((tile + 2*halo) / scaleY));
+        ImageStack crops = new ImageStack(cropWidth, cropHeight);
+        int[][] origins = new int[uncertain.size()][];
+        for (int k = 0; k < uncertain.size(); k++) {
+            int[] u = uncertain.get(k);
+            int x0 = Math.max(0, Math.min((int) Math.floor((u[1] - halo) / scaleX), rgbWidth - cropWidth));
+            int y0 = Math.max(0, Math.min((int) Math.floor((u[2] - halo) / scaleY), rgbHeight - cropHeight));
+            origins[k] = new int[] {x0, y0};
+            ImageProcessor ip = rgb.getStack().getProcessor(u[0]+1);
+            ip.setRoi(x0, y0, cropWidth, cropHeight);
+            crops.addSlice(ip.crop());
+            ip.resetRoi();
+        }
+        ImagePlus cropped = new ImagePlus("LQ_tiles_"+rgb.getTitle(), crops);
+        cropped.setCalibration(rgb.getCalibration().copy());
+        cropped.setDimensions(1, crops.getSize(), 1);
+
+        ImagePlus refined = segment(cropped);
+        if (refined == null || refined.getStackSize() != crops.getSize()) {
+            if (refined != null) refined.close();
+            cropped.close();
+            return false;
+        }
+
+        // Replace the labels of the tiles, without the context. Pixels are
+        // mapped through rgb coordinates, since the refined tiles are at the
+        // resolution U-Net chose for the crops.
+        int refinedWidth = refined.getWidth();
+        int refinedHeight = refined.getHeight();
+        double refinedX = (double) refinedWidth / (double) cropWidth;
+        double refinedY = (double) refinedHeight / (double) cropHeight;
+        for (int k = 0; k < uncertain.size(); k++) {
+            int[] u = uncertain.get(k);
+            ImageProcessor src = refined.getStack().getProcessor(k+1);
+            ImageProcessor dst = segmented.getStack().getProcessor(u[0]+1);
+            int x1 = Math.min(u[1] + tile, width);
+            int y1 = Math.min(u[2] + tile, height);
+            for (int y = u[2]; y < y1; y++) {
+                int sy = (int) (((y + 0.5) / scaleY - origins[k][1]) * refinedY);
+                sy = Math.max(0, Math.min(sy, refinedHeight - 1));
+                for (int x = u[1]; x < x1; x++) {
+                    int sx = (int) (((x + 0.5) / scaleX - origins[k][0]) * refinedX);
+                    sx = Math.max(0, Math.min(sx, refinedWidth - 1));
+                    dst.set(x, y, src.get(sx, sy));
+                }
+            }
+        }
+        refined.close();
+        cropped.close();
+        return true;
+    }
+
+    /**
+     * Segment the crops with mirror averaging, in a single U-Net run.
+     *
+     * @param cropped one crop per slice
+     * @return label image, one slice per crop, or null if segmentation failed
+     * @throws InterruptedException if the segmentation was interrupted
+     */
+    ImagePlus segment(ImagePlus cropped) throws InterruptedException {
+        String averageflag = lq.averageflag;
+        String outputsoftmaxscores = lq.outputsoftmaxscores;
+        lq.averageflag = MIRROR;
+        lq.outputsoftmaxscores = "false";
+        int[] before = WindowManager.getIDList();
+        try {
+            lq.processHyperStack(cropped, lq.unetParameters());
+        } finally {
+            lq.averageflag = averageflag;
+            lq.outputsoftmaxscores = outputsoftmaxscores;
+        }
+        return LysoQuant.newImage(before, LysoQuant.SEGMENTATION);
+    }
+
+    /**
+     * Mean margin between the two most probable classes over the pixels of
+     * a tile labelled as lysosomes and the background pixels whose margin is
+     * below the confidence setting. Background pixels above it are left out,
+     * so that a few uncertain lysosomes are not averaged away by the
+     * background around them. Tiles with neither are confident.
+     */
+    double margin(float[][] scores, ImageProcessor labels, int x0, int y0, int width, int height) {
+        int x1 = Math.min(x0 + tile, width);
+        int y1 = Math.min(y0 + tile, height);
+        double sum = 0;
+        int n = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int i = y*width + x;
+                float first = 0;
+                float second = 0;
+                for (float[] score : scores) {
+                    float p = score[i];
+                    if (p > first) {
+                        second = first;
+                        first = p;
+                    } else if (p > second) {
+                        second = p;
+                    }
+                }
+                if (labels.get(x, y) == 0 && first - second >= lq.confidence) continue;
+                sum += first - second;
+                n++;
+            }
+        }
+        return n == 0 ? 1 : sum / n;
+    }
+}
@@ -0,0 +1,358 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.*;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Frame to frame tracking of lysosomes in one slice of a time-lapse.
+ * Objects of consecutive frames are linked when their masks overlap, or
+ * when their centroids are closer than the maximum displacement. Candidates
+ * are found through a spatial hash of the bounding boxes with cells of the
+ * maximum displacement: objects larger than a cell are in every cell they
+ * cover, so that overlapping ones are found whatever their size, and linking
+ * stays linear in the number of objects. Links are assigned greedily,
+ * largest overlap first, then closest.
+ *
+ * @author Diego Morone
+ */
+class Tracker {
+
+    /**
+     * One object in one frame, in segmented image coordinates
+     */
+    static class Spot {
+        int frame;
+        int objClass;
+        Roi roi;
+        Rectangle bounds;
+        ImageProcessor mask; // null for rectangles
+        double x;
+        double y;
+        int area; // pixels
+        int track;
+        Spot previous;
+
+        boolean contains(int px, int py) {
+            if (!bounds.contains(px, py)) return false;
+            return mask == null || mask.get(px - bounds.x, py - bounds.y) != 0;
+        }
+    }
+
+    final LysoQuant lq;
+    final ImagePlus segmented;
+    final ImagePlus raw;
+    final String cellID;
+    final Roi cell; // in segmented coordinates, or null
+    final int z;
+    final double invscale; // raw width / segmented width
+    final double maxDistance; // segmented pixels
+
+    ArrayList<Spot> spots = new ArrayList<Spot>();
+    int nTracks;
+
+    /**
+     * @param lq analysis settings (classes, frames, channels, minimum size, maximum displacement)
+     * @param segmented labels of the selected slices and frames
+     * @param raw the raw multichannel image
+     * @param cellID cell name
+     * @param cell cell ROI in segmented coordinates, or null
+     * @param z slice of raw
+     */
+    Tracker(LysoQuant lq, ImagePlus segmented, ImagePlus raw, String cellID, Roi cell, int z) {
+        this.lq = lq;
+        this.segmented = segmented;
+        this.raw = raw;
+        this.cellID = cellID;
+        this.cell = cell;
+        this.z = z;
+        invscale = (double) raw.getWidth() / (double) segmented.getWidth();
+        Calibration cal = segmented.getCalibration();
+        maxDistance = Math.max(1, lq.trackDistance / cal.pixelWidth);
+    }
+
+    /**
+     * Detect the objects of every frame and link them into tracks
+     */
+    void run() {
+        ArrayList<Spot> previous = null;
+        for (int t = lq.firstT; t <= lq.lastT; t++) {
+            ArrayList<Spot> current = detect(t);
+            if (previous != null)
+                link(previous, current);
+            for (Spot spot : current) {
+                if (spot.track == 0)
+                    spot.track = ++nTracks;
+            }
+            spots.addAll(current);
+            previous = current;
+        }
+    }
+
+    /**
+     * Objects of all classes in frame t
+     */
+    ArrayList<Spot> detect(int t) {
+        HashMap<Integer, String> values = lq.classValues();
+        Calibration cal = segmented.getCalibration();
+        double minSize = lq.minSize / (cal.pixelWidth*cal.pixelHeight);
+        ParticleCollector pa = new ParticleCollector(ParticleAnalyzer.SHOW_NONE, 0, new ResultsTable(),
+                minSize, Double.MAX_VALUE, 0.0, 1.0);
+
+        ArrayList<Spot> found = new ArrayList<Spot>();
+        Iterator<Integer> it = values.keySet().iterator();
+        while (it.hasNext()) {
+            int objClass = it.next();
+            if (cell != null)
+                segmented.setRoi(cell);
+            segmented.setT(t-lq.firstT+1);
+            segmented.setZ(z-lq.firstZ+1);
+            ImageProcessor ip = segmented.getProcessor();
+            ip.setThreshold(objClass, objClass, ImageProcessor.NO_LUT_UPDATE);
+            pa.clear();
+            pa.analyze(segmented);
+            for (Roi roi : pa.getRoisAsArray()) {
+                Spot spot = new Spot();
+                spot.frame = t;
+                spot.objClass = objClass;
+                spot.roi = roi;
+                spot.bounds = roi.getBounds();
+                spot.mask = roi.getMask();
+                double sx = 0, sy = 0;
+                for (int y = spot.bounds.y; y < spot.bounds.y + spot.bounds.height; y++) {
+                    for (int x = spot.bounds.x; x < spot.bounds.x + spot.bounds.width; x++) {
+                        if (!spot.contains(x, y)) continue;
+                        sx += x + 0.5;
+                        sy += y + 0.5;
+                        spot.area++;
+                    }
+                }
+                spot.x = sx / spot.area;
+                spot.y = sy / spot.area;
+                found.add(spot);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Link current spots to previous ones, setting their track
+     */
+    void link(ArrayList<Spot> previous, ArrayList<Spot> current) {
+        // Spatial hash of the previous frame, by bounding box
+        HashMap<Long, ArrayList<Spot>> grid = new HashMap<Long, ArrayList<Spot>>();
+        for (Spot spot : previous) {
+            Rectangle r = spot.bounds;
+            for (int gy = cell(r.y); gy <= cell(r.y + r.height); gy++) {
+                for (int gx = cell(r.x); gx <= cell(r.x + r.width); gx++) {
+                    long key = key(gx, gy);
+                    ArrayList<Spot> bucket = grid.get(key);
+                    if (bucket == null) {
+                        bucket = new ArrayList<Spot>();
+                        grid.put(key, bucket);
+                    }
+                    bucket.add(spot);
+                }
+            }
+        }
+
+        // Candidate links: {previous, current, overlap, distance}. A previous
+        // spot overlapping b, or with its centroid within the maximum
+        // displacement of b, covers a cell of the bounds of b grown by it.
+        ArrayList<Object[]> candidates = new ArrayList<Object[]>();
+        for (Spot b : current) {
+            Rectangle r = b.bounds;
+            HashSet<Spot> seen = new HashSet<Spot>();
+            for (int gy = cell(r.y - maxDistance); gy <= cell(r.y + r.height + maxDistance); gy++) {
+                for (int gx = cell(r.x - maxDistance); gx <= cell(r.x + r.width + maxDistance); gx++) {
+                    ArrayList<Spot> bucket = grid.get(key(gx, gy));
+                    if (bucket == null) continue;
+                    for (Spot a : bucket) {
+                        if (!seen.add(a)) continue;
+                        double distance = Math.hypot(a.x - b.x, a.y - b.y);
+                        int overlap = overlap(a, b);
+                        if (overlap > 0 || distance <= maxDistance)
+                            candidates.add(new Object[] {a, b, overlap, distance});
+                    }
+                }
+            }
+        }
+        Collections.sort(candidates, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] o1, Object[] o2) {
+                int c = Integer.compare((Integer)o2[2], (Integer)o1[2]);
+                return c != 0 ? c : Double.compare((Double)o1[3], (Double)o2[3]);
+            }
+        });
+
+        HashMap<Spot, Spot> linked = new HashMap<Spot, Spot>();
+        for (Object[] candidate : candidates) {
+            Spot a = (Spot)candidate[0];
+            Spot b = (Spot)candidate[1];
+            if (b.track != 0 || linked.containsKey(a)) continue;
+            b.track = a.track;
+            b.previous = a;
+            linked.put(a, b);
+        }
+    }
+
+    /**
+     * @return number of pixels in both masks
+     */
+    static int overlap(Spot a, Spot b) {
+        Rectangle r = a.bounds.intersection(b.bounds);
+        if (r.isEmpty()) return 0;
+        int n = 0;
+        for (int y = r.y; y < r.y + r.height; y++) {
+            for (int x = r.x; x < r.x + r.width; x++) {
+                if (a.contains(x, y) && b.contains(x, y)) n++;
+            }
+        }
+        return n;
+    }
+
+    int cell(double coordinate) {
+        return (int)Math.floor(coordinate / maxDistance);
+    }
+
+    static long key(int gx, int gy) {
+        return ((long)gx << 32) ^ (gy & 0xffffffffL);
+    }
+
+    /**
+     * Add one row per object and frame, with the mean intensity of the
+     * measurement channels, ordered by track and frame.
+     *
+     * @param table destination
+     */
+    void addSpots(ResultsTable table) {
+        HashMap<Integer, String> values = lq.classValues();
+        Calibration cal = raw.getCalibration();
+        ArrayList<Spot> sorted = new ArrayList<Spot>(spots);
+        Collections.sort(sorted, new Comparator<Spot>() {
+            @Override
+            public int compare(Spot a, Spot b) {
+                int c = Integer.compare(a.track, b.track);
+                return c != 0 ? c : Integer.compare(a.frame, b.frame);
+            }
+        });
+
+        for (Spot spot : sorted) {
+            Roi scaled = LysoQuant.scaleRoi(spot.roi, invscale);
+            table.incrementCounter();
+            table.addValue("Image", raw.getTitle());
+            table.addValue("Cell ID", cellID);
+            if (lq.proteins != null && lq.proteins.length > 1)
+                table.addValue("Protein Ch", lq.ch_protein);
+            if (lq.nSlices > 1)
+                table.addValue("Slice", z);
+            table.addValue("Track", spot.track);
+            table.addValue("Frame", spot.frame);
+            if (cal.frameInterval > 0)
+                table.addValue("Time ("+cal.getTimeUnit()+")", (spot.frame-1)*cal.frameInterval);
+            table.addValue("Lysosome Type", values.get(spot.objClass));
+            table.addValue("X", cal.getX(spot.x * invscale));
+            table.addValue("Y", cal.getY(spot.y * invscale, raw.getHeight()));
+            table.addValue("Area", spot.area * invscale*invscale * cal.pixelWidth*cal.pixelHeight);
+            for (int channel = lq.firstC; channel <= lq.lastC; channel++) {
+                ImageProcessor ip = raw.getStack().getProcessor(raw.getStackIndex(channel, z, spot.frame));
+                ip.setRoi(scaled);
+                table.addValue("Mean Ch"+channel, ip.getStatistics().mean);
+                ip.resetRoi();
+            }
+        }
+    }
+
+    /**
+     * Add one row per track, with its span and the first Empty to Loaded
+     * transition. Its time is counted from the first frame of the track,
+     * unlike the Time of the spots, counted from the first frame of the image.
+     *
+     * @param table destination
+     */
+    void addTracks(ResultsTable table) {
+        HashMap<Integer, String> values = lq.classValues();
+        Calibration cal = raw.getCalibration();
+
+        // Last spot of every track, the previous ones are linked
+        Spot[] last = new Spot[nTracks+1];
+        for (Spot spot : spots) {
+            last[spot.track] = spot;
+        }
+
+        for (int track = 1; track <= nTracks; track++) {
+            Spot first = last[track];
+            int frames = 1;
+            int transition = -1;
+            for (Spot spot = last[track]; spot.previous != null; spot = spot.previous) {
+                if (values.get(spot.previous.objClass).equals("Empty") && values.get(spot.objClass).equals("Loaded"))
+                    transition = spot.frame; // earliest one is kept
+                first = spot.previous;
+                frames++;
+            }
+
+            table.incrementCounter();
+            table.addValue("Image", raw.getTitle());
+            table.addValue("Cell ID", cellID);
+            if (lq.proteins != null && lq.proteins.length > 1)
+                table.addValue("Protein Ch", lq.ch_protein);
+            if (lq.nSlices > 1)
+                table.addValue("Slice", z);
+            table.addValue("Track", track);
+            table.addValue("First Frame", first.frame);
+            table.addValue("Last Frame", last[track].frame);
+            table.addValue("Frames", frames);
+            table.addValue("First Type", values.get(first.objClass));
+            table.addValue("Last Type", values.get(last[track].objClass));
+            table.addValue("Empty>Loaded Frame", transition < 0 ? Double.NaN : transition);
+            if (cal.frameInterval > 0)
+                table.addValue("Empty>Loaded Time from Track Start ("+cal.getTimeUnit()+")",
+                        transition < 0 ? Double.NaN : (transition - first.frame)*cal.frameInterval);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.*;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Triage of fields and cells before segmentation.
+ * The lysosome channel of each cell, slice and frame is sampled at low
+ * resolution and skipped if it cannot contain a lysosome: fewer bright pixels
+ * (above the median by the signal threshold, in robust standard deviations)
+ * than the minimum lysosome size, or, if a focus threshold is set, bright
+ * pixels not sharp enough (mean Laplacian relative to their contrast).
+ * Only the planes and the region of the cells that passed are segmented;
+ * skipped ones are reported in the summary with the reason.
+ *
+ * @author Diego Morone
+ */
+class Triage {
+
+    static final String PASSED = "passed";
+    static final int STEP = 2; // sampling step, in pixels
+
+    final LysoQuant lq;
+    final ImagePlus raw;
+    final Roi[] cells;
+    final String[] cellIDs;
+    final double signal = Double.parseDouble(Prefs.get("lysoquant.triage.signal", "5"));
+    final double focus = Double.parseDouble(Prefs.get("lysoquant.triage.focus", "0"));
+
+    final int nZ;
+    final int nT;
+    HashMap<String, String> reasons = new HashMap<String, String>(); // skipped cell and plane
+    boolean[] kept; // planes with at least one cell passed, z inner, t outer
+    Rectangle bounds; // cells passed in at least one plane
+    int skipped;
+
+    /**
+     * Triage the selected slices and frames of raw.
+     *
+     * @param lq analysis settings (channels, ranges, minimum size)
+     * @param raw the raw multichannel image
+     * @param cells cell ROIs, or a single null for the whole image
+     * @param cellIDs cell names used in the summary
+     */
+    Triage(LysoQuant lq, ImagePlus raw, Roi[] cells, String[] cellIDs) {
+        this.lq = lq;
+        this.raw = raw;
+        this.cells = cells;
+        this.cellIDs = cellIDs;
+        nZ = lq.lastZ - lq.firstZ + 1;
+        nT = lq.lastT - lq.firstT + 1;
+        kept = new boolean[nZ*nT];
+
+        Calibration cal = raw.getCalibration();
+        double minPixels = lq.minSize / (cal.pixelWidth*cal.pixelHeight);
+
+        for (int t = lq.firstT; t <= lq.lastT; t++) {
+            for (int z = lq.firstZ; z <= lq.lastZ; z++) {
+                ImageProcessor ip = raw.getStack().getProcessor(raw.getStackIndex(lq.ch_lyso, z, t));
+                for (int i = 0; i < cells.length; i++) {
+                    String reason = check(ip, cells[i], minPixels);
+                    if (reason == null) {
+                        kept[plane(z, t)] = true;
+                        Rectangle r = cells[i] == null ? new Rectangle(0, 0, raw.getWidth(), raw.getHeight())
+                                : cells[i].getBounds().intersection(new Rectangle(0, 0, raw.getWidth(), raw.getHeight()));
+                        bounds = bounds == null ? r : bounds.union(r);
+                    } else {
+                        reasons.put(key(cellIDs[i], z, t), reason);
+                        skipped++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return reason why a cell was not analyzed in a slice and frame, or null if it passed
+     */
+    String reason(String cellID, int z, int t) {
+        return reasons.get(key(cellID, z, t));
+    }
+
+    /**
+     * @return number of planes to segment
+     */
+    int keptPlanes() {
+        int n = 0;
+        for (boolean k : kept) {
+            if (k) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Planes and region of rgb to segment.
+     *
+     * @param rgb U-Net input for the selected slices and frames
+     * @return the planes passed, cropped to the cells passed, or null if none passed
+     */
+    ImagePlus reduce(ImagePlus rgb) {
+        if (bounds == null)
+            return null;
+        ImageStack stack = new ImageStack(bounds.width, bounds.height);
+        for (int i = 0; i < kept.length; i++) {
+            if (!kept[i]) continue;
+            ImageProcessor ip = rgb.getStack().getProcessor(i+1);
+            ip.setRoi(bounds);
+            stack.addSlice(ip.crop());
+            ip.resetRoi();
+        }
+        ImagePlus reduced = new ImagePlus(rgb.getTitle(), stack);
+        reduced.setCalibration(rgb.getCalibration().copy());
+        reduced.setDimensions(1, stack.getSize(), 1);
+        return reduced;
+    }
+
+    /**
+     * Labels of all selected slices and frames from the segmentation of the
+     * reduced image, background where nothing was segmented.
+     *
+     * @param segmented segmentation of reduce(rgb), or null if nothing was segmented
+     * @return labels with the size of raw (times the U-Net rescaling) and the selected slices and frames
+     */
+    ImagePlus expand(ImagePlus segmented) {
+        double scale = segmented == null ? 1 : (double) segmented.getWidth() / (double) bounds.width;
+        int width = (int)Math.round(raw.getWidth()*scale);
+        int height = (int)Math.round(raw.getHeight()*scale);
+        int x0 = segmented == null ? 0 : (int)Math.round(bounds.x*scale);
+        int y0 = segmented == null ? 0 : (int)Math.round(bounds.y*scale);
+
+        ImageStack stack = new ImageStack(width, height);
+        int k = 0;
+        for (int i = 0; i < kept.length; i++) {
+            ImageProcessor ip;
+            if (segmented == null) {
+                ip = new ByteProcessor(width, height);
+            } else {
+                ip = segmented.getStack().getProcessor(1).createProcessor(width, height);
+                if (kept[i])
+                    ip.insert(segmented.getStack().getProcessor(++k), x0, y0);
+            }
+            stack.addSlice(ip);
+        }
+        ImagePlus expanded = new ImagePlus(segmented == null ? raw.getTitle() : segmented.getTitle(), stack);
+        expanded.setCalibration(segmented == null ? raw.getCalibration().copy() : segmented.getCalibration().copy());
+        expanded.setDimensions(1, nZ, nT);
+        return expanded;
+    }
+
+    /**
+     * Low resolution check of one cell in one plane of the lysosome channel
+     *
+     * @return reason to skip, or null
+     */
+    String check(ImageProcessor ip, Roi cell, double minPixels) {
+        Rectangle r = cell == null ? new Rectangle(0, 0, ip.getWidth(), ip.getHeight()) : cell.getBounds();
+        int x1 = Math.min(r.x + r.width, ip.getWidth() - 1);
+        int y1 = Math.min(r.y + r.height, ip.getHeight() - 1);
+        int x0 = Math.max(r.x, 1);
+        int y0 = Math.max(r.y, 1);
+        if (x1 <= x0 || y1 <= y0)
+            return "skipped: empty cell";
+
+        float[] values = new float[((x1-x0)/STEP+1)*((y1-y0)/STEP+1)];
+        int n = 0;
+        for (int y = y0; y < y1; y += STEP) {
+            for (int x = x0; x < x1; x += STEP) {
+                if (cell == null || cell.contains(x, y))
+                    values[n++] = ip.getf(x, y);
+            }
+        }
+        if (n == 0)
+            return "skipped: empty cell";
+
+        // Robust background and noise: median and median absolute deviation
+        float[] sorted = Arrays.copyOf(values, n);
+        Arrays.sort(sorted);
+        float median = sorted[n/2];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = Math.abs(values[i] - median);
+        }
+        Arrays.sort(sorted);
+        double sd = Math.max(1.4826 * sorted[n/2], 1);
+        double threshold = median + signal*sd;
+
+        // Bright pixels and their sharpness
+        int bright = 0;
+        double contrast = 0;
+        double laplacian = 0;
+        for (int y = y0; y < y1; y += STEP) {
+            for (int x = x0; x < x1; x += STEP) {
+                float v = ip.getf(x, y);
+                if (v <= threshold || (cell != null && !cell.contains(x, y))) continue;
+                bright++;
+                contrast += v - median;
+                laplacian += Math.abs(4*v - ip.getf(x-1, y) - ip.getf(x+1, y) - ip.getf(x, y-1) - ip.getf(x, y+1));
+            }
+        }
+
+        double brightPixels = bright * STEP * STEP;
+        if (brightPixels < minPixels)
+            return "skipped: no lysosome signal ("+IJ.d2s(brightPixels, 0)+" px above background)";
+
+        double sharpness = laplacian / contrast;
+        if (sharpness < focus)
+            return "skipped: out of focus (sharpness "+IJ.d2s(sharpness, 3)+")";
+
+        return null;
+    }
+
+    int plane(int z, int t) {
+        return (t - lq.firstT)*nZ + (z - lq.firstZ);
+    }
+
+    static String key(String cellID, int z, int t) {
+        return cellID+"\t"+z+"\t"+t;
+    }
+}
@@ -0,0 +1,205 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import ij.*;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Synthetic multichannel image with known lysosomes, for benchmarks and tests.
+ * Generates a 16-bit raw hyperstack and the matching label stack that U-Net
+ * would return (1 = Empty, 2 = Loaded, 0 = background), so that count() can
+ * run without a segmentation backend. Objects are disks placed at random
+ * without overlap; every field is reproducible from seed.
+ *
+ * @author Diego Morone
+ */
+public class SyntheticImage {
+
+    public int width = 512;
+    public int height = 512;
+    public int nChannels = 3;
+    public int nSlices = 1;
+    public int nFrames = 1;
+    public int ch_lyso = 2;
+    public int ch_protein = 3;
+
+    public int objects = 100; // per plane
+    public double radius = 6; // px
+    public double radiusSD = 1.5; // px
+    public double minRadius = 4.5; // px, keeps objects above the default LysoQuant min size
+    public double loaded = 0.5; // fraction of Loaded objects
+    public double pixelSize = 0.1; // microns
+    public long seed = 1;
+
+    public int background = 100;
+    public int lysoIntensity = 2000;
+    public int proteinIntensity = 3000;
+    public double noise = 20;
+
+    public ImagePlus raw;
+    public ImagePlus labels;
+
+    /**
+     * Number of Empty and Loaded objects placed in each plane, in Z/T order,
+     * as {empty, loaded}
+     */
+    public ArrayList<int[]> counts = new ArrayList<int[]>();
+
+    /**
+     * Generate raw and labels with the current parameters
+     *
+     * @return this
+     */
+    public SyntheticImage generate() {
+        Random random = new Random(seed);
+        ImageStack rawStack = new ImageStack(width, height);
+        ImageStack labelStack = new ImageStack(width, height);
+        counts.clear();
+
+        for (int t = 1; t <= nFrames; t++) {
+            for (int z = 1; z <= nSlices; z++) {
+                ByteProcessor label = new ByteProcessor(width, height);
+                counts.add(place(label, random));
+                byte[] lpixels = (byte[]) label.getPixels();
+
+                for (int c = 1; c <= nChannels; c++) {
+                    ShortProcessor ip = new ShortProcessor(width, height);
+                    short[] pixels = (short[]) ip.getPixels();
+                    for (int i = 0; i < pixels.length; i++) {
+                        double value = background + noise * random.nextGaussian();
+                        if (c == ch_lyso && lpixels[i] != 0)
+                            value += lysoIntensity;
+                        if (c == ch_protein && lpixels[i] == 2)
+                            value += proteinIntensity;
+                        pixels[i] = (short) Math.max(0, Math.min(65535, (int) value));
+                    }
+                    rawStack.addSlice("c:"+c+" z:"+z+" t:"+t, ip);
+                }
+                labelStack.addSlice("z:"+z+" t:"+t, label);
+            }
+        }
+
+        Calibration cal = new Calibration();
+        cal.pixelWidth = pixelSize;
+        cal.pixelHeight = pixelSize;
+        cal.setUnit("micron");
+
+        raw = new ImagePlus("synthetic", rawStack);
+        raw.setDimensions(nChannels, nSlices, nFrames);
+        raw.setOpenAsHyperStack(true);
+        raw.setCalibration(cal);
+
+        labels = new ImagePlus("LQ_synthetic", labelStack);
+        labels.setDimensions(1, nSlices, nFrames);
+        labels.setCalibration(cal);
+        return this;
+    }
+
+    /**
+     * LysoQuant set up for this image, with every setting explicit so that
+     * results depend on the parameters and seed only, not on IJ_Prefs
+     *
+     * @return analyzer for raw and labels, with an empty summary
+     */
+    public LysoQuant analyzer() {
+        LysoQuant lq = new LysoQuant();
+        lq.interactive = false;
+        lq.summary = new ResultsTable();
+        lq.nChannels = nChannels;
+        lq.nSlices = nSlices;
+        lq.nFrames = nFrames;
+        lq.ch_lyso = ch_lyso;
+        lq.ch_protein = ch_protein;
+        lq.proteins = new int[] {ch_protein};
+        lq.firstC = 1;
+        lq.lastC = nChannels;
+        lq.firstZ = 1;
+        lq.lastZ = nSlices;
+        lq.firstT = 1;
+        lq.lastT = nFrames;
+        lq.minSize = 0.53;
+        lq.display_values = false;
+        lq.display_cargo = false;
+        lq.cargo_thres = 0;
+        lq.track = false;
+        lq.triageEnabled = false;
+        return lq;
+    }
+
+    /**
+     * Draw non overlapping disks in label, 1 for Empty and 2 for Loaded
+     *
+     * @return number of {empty, loaded} objects drawn
+     */
+    int[] place(ByteProcessor label, Random random) {
+        int[] placed = new int[2];
+        int attempts = objects * 20;
+        for (int n = 0; n < attempts && placed[0]+placed[1] < objects; n++) {
+            double r = Math.max(minRadius, radius + radiusSD * random.nextGaussian());
+            int ri = (int) Math.ceil(r);
+            int cx = ri + 1 + random.nextInt(Math.max(1, width - 2*ri - 2));
+            int cy = ri + 1 + random.nextInt(Math.max(1, height - 2*ri - 2));
+
+            // Keep one pixel of background around each object so they stay separate
+            boolean free = true;
+            for (int y = cy-ri-1; y <= cy+ri+1 && free; y++) {
+                for (int x = cx-ri-1; x <= cx+ri+1; x++) {
+                    if (label.get(x, y) != 0) {
+                        free = false;
+                        break;
+                    }
+                }
+            }
+            if (!free) continue;
+
+            int value = random.nextDouble() < loaded ? 2 : 1;
+            for (int y = cy-ri; y <= cy+ri; y++) {
+                for (int x = cx-ri; x <= cx+ri; x++) {
+                    if ((x-cx)*(x-cx) + (y-cy)*(y-cy) <= r*r)
+                        label.set(x, y, value);
+                }
+            }
+            placed[value-1]++;
+        }
+        return placed;
+    }
+}
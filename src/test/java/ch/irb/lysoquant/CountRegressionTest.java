@@ -0,0 +1,308 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.gui.Toolbar;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+/**
+ * Golden output tests of the counting pipeline on synthetic images with
+ * fixed seeds: counts, ratios and cargo medians of the summary, for whole
+ * images, several cells, several slices and frames, segmentations at a
+ * different scale than the raw image, and several channel pairs.
+ *
+ * @author Diego Morone
+ */
+public class CountRegressionTest {
+
+    static void count(LysoQuant lq, ImagePlus labels, ImagePlus raw, String cellID, Roi roi,
+            boolean display_values, boolean display_cargo, int cargo_thres) {
+        lq.count(labels, raw, cellID, roi, lq.firstC, lq.lastC, lq.classValues(), lq.minSize,
+                display_values, display_cargo, cargo_thres);
+    }
+
+    static void assertCounts(int[] expected, ResultsTable summary, int row) {
+        assertEquals("Empty", expected[0], summary.getValue("Empty", row), 0);
+        assertEquals("Loaded", expected[1], summary.getValue("Loaded", row), 0);
+        assertEquals("Total #", expected[0]+expected[1], summary.getValue("Total #", row), 0);
+        assertEquals("ratios", 1.0, summary.getValue("Empty Ratio", row) + summary.getValue("Loaded Ratio", row), 1e-12);
+    }
+
+    @Test
+    public void wholeImage() throws Exception {
+        SyntheticImage s = new SyntheticImage().generate();
+        LysoQuant lq = s.analyzer();
+        count(lq, s.labels, s.raw, "0000-0000", null, false, false, 0);
+
+        assertEquals(1, lq.summary.size());
+        assertCounts(s.counts.get(0), lq.summary, 0);
+        Golden.check("whole_image.tsv", Golden.format(lq.summary));
+    }
+
+    @Test
+    public void slicesAndFrames() throws Exception {
+        SyntheticImage s = new SyntheticImage();
+        s.nSlices = 2;
+        s.nFrames = 3;
+        s.objects = 60;
+        s.seed = 2;
+        s.generate();
+        LysoQuant lq = s.analyzer();
+        count(lq, s.labels, s.raw, "0000-0000", null, false, false, 0);
+
+        assertEquals(6, lq.summary.size());
+        for (int row = 0; row < 6; row++) {
+            assertCounts(s.counts.get(row), lq.summary, row);
+        }
+        assertEquals("synthetic-z:2/2-t:3/3", lq.summary.getLabel(5));
+        Golden.check("slices_frames.tsv", Golden.format(lq.summary));
+    }
+
+    @Test
+    public void subRange() throws Exception {
+        SyntheticImage s = new SyntheticImage();
+        s.nSlices = 3;
+        s.nFrames = 2;
+        s.objects = 40;
+        s.seed = 3;
+        s.generate();
+        LysoQuant lq = s.analyzer();
+        // Only slices 2-3 of frame 2, segmented alone
+        lq.firstZ = 2;
+        lq.firstT = 2;
+        ImageStack stack = new ImageStack(s.width, s.height);
+        for (int z = 2; z <= 3; z++) {
+            stack.addSlice(s.labels.getStack().getProcessor(s.labels.getStackIndex(1, z, 2)));
+        }
+        ImagePlus labels = new ImagePlus("LQ_synthetic", stack);
+        labels.setCalibration(s.labels.getCalibration());
+        labels.setDimensions(1, 2, 1);
+        count(lq, labels, s.raw, "0000-0000", null, false, false, 0);
+
+        assertEquals(2, lq.summary.size());
+        assertCounts(s.counts.get(3+1), lq.summary, 0);
+        assertCounts(s.counts.get(3+2), lq.summary, 1);
+    }
+
+    @Test
+    public void severalCells() throws Exception {
+        SyntheticImage s = new SyntheticImage();
+        s.seed = 4;
+        s.objects = 150;
+        s.generate();
+        LysoQuant lq = s.analyzer();
+
+        Roi[] cells = {new Roi(0, 0, 256, 512), new OvalRoi(256, 64, 240, 380), new Roi(300, 0, 200, 40)};
+        String[] names = {"left", "oval", "top"};
+        for (int i = 0; i < cells.length; i++) {
+            cells[i].setName(names[i]);
+            count(lq, s.labels, s.raw, names[i], cells[i], false, false, 0);
+        }
+
+        assertEquals(3, lq.summary.size());
+        assertEquals("syntheticoval", lq.summary.getLabel(1));
+        Golden.check("several_cells.tsv", Golden.format(lq.summary));
+    }
+
+    @Test
+    public void cargoArea() throws Exception {
+        SyntheticImage s = new SyntheticImage();
+        s.seed = 5;
+        s.objects = 40;
+        s.loaded = 0.7;
+        s.generate();
+        LysoQuant lq = s.analyzer();
+        // The upper cargo threshold is the display maximum, as when the protein channel is displayed
+        s.raw.setPosition(s.ch_protein, 1, 1);
+        s.raw.resetDisplayRange();
+        // Cargo area in the protein channel only, and in all channels
+        lq.firstC = lq.lastC = s.ch_protein;
+        count(lq, s.labels, s.raw, "0000-0000", null, true, true, 1000);
+        lq.firstC = 1;
+        lq.lastC = s.nChannels;
+        count(lq, s.labels, s.raw, "0000-0000", null, true, true, 1000);
+
+        assertCounts(s.counts.get(0), lq.summary, 0);
+        // Loaded lysosomes, the majority, are filled with cargo but for their outline
+        double median = lq.summary.getValue("%Cargo Area Median", 0);
+        assertTrue("cargo median "+median, median > 80 && median <= 100);
+        Golden.check("cargo_area.tsv", Golden.format(lq.summary));
+    }
+
+    @Test
+    public void scaledSegmentation() throws Exception {
+        SyntheticImage s = new SyntheticImage();
+        s.seed = 6;
+        s.objects = 80;
+        s.radius = 8;
+        s.minRadius = 6;
+        s.generate();
+        LysoQuant lq = s.analyzer();
+
+        // U-Net output at half the resolution of the raw image
+        ImageProcessor ip = s.labels.getProcessor();
+        ip.setInterpolationMethod(ImageProcessor.NONE);
+        ImagePlus labels = new ImagePlus("LQ_synthetic", ip.resize(s.width/2, s.height/2));
+        Calibration cal = s.labels.getCalibration().copy();
+        cal.pixelWidth *= 2;
+        cal.pixelHeight *= 2;
+        labels.setCalibration(cal);
+
+        Roi cell = new OvalRoi(40, 40, 400, 420);
+        cell.setName("cell");
+        Roi scaled = LysoQuant.scaleRoi(cell, 0.5);
+        count(lq, labels, s.raw, "cell", scaled, true, true, 1000);
+        count(lq, labels, s.raw, "0000-0000", null, true, true, 1000);
+
+        assertEquals(2, lq.summary.size());
+        assertCounts(s.counts.get(0), lq.summary, 1);
+        Golden.check("scaled_segmentation.tsv", Golden.format(lq.summary));
+    }
+
+    @Test
+    public void channelPairs() throws Exception {
+        SyntheticImage s = new SyntheticImage();
+        s.nChannels = 4;
+        s.nFrames = 2;
+        s.objects = 50;
+        s.seed = 7;
+        s.generate();
+        LysoQuant lq = s.analyzer();
+        lq.proteins = new int[] {3, 4};
+        ImagePlus[] labels = {s.labels, s.labels.duplicate()};
+        lq.count(labels, lq.proteins, s.raw, "0000-0000", null, lq.firstC, lq.lastC, lq.classValues(),
+                lq.minSize, true, true, 1000);
+
+        assertEquals(4, lq.summary.size());
+        assertEquals("synthetic-t:1/2-ch:2/4", lq.summary.getLabel(1));
+        assertEquals(4, lq.summary.getValue("Protein Ch", 1), 0);
+        assertEquals(3, lq.ch_protein);
+        Golden.check("channel_pairs.tsv", Golden.format(lq.summary));
+    }
+
+    @Test
+    public void channelPairsWithCells() throws Exception {
+        SyntheticImage s = new SyntheticImage();
+        s.nChannels = 4;
+        s.nFrames = 2;
+        s.objects = 80;
+        s.seed = 9;
+        s.generate();
+        LysoQuant lq = s.analyzer();
+        lq.proteins = new int[] {3, 4};
+        Roi[] cells = {new Roi(20, 20, 200, 220), new OvalRoi(260, 240, 220, 240)};
+        cells[0].setName("rect");
+        cells[1].setName("oval");
+
+        // Inputs of every pair cleared outside the cells, not only the current image
+        ImagePlus[] rgbs = lq.make_rgb(lq.proteins, s.ch_lyso, s.raw, 1, 1, 1, 2);
+        Roi union = LysoQuantBatch.union(cells);
+        LysoQuant.clearOutside(rgbs, union);
+        int background = Toolbar.getBackgroundColor().getRGB() & 0xffffff;
+        assertTrue(union.contains(30, 30) && union.contains(370, 360));
+        for (ImagePlus rgb : rgbs) {
+            for (int i = 1; i <= rgb.getStackSize(); i++) {
+                ImageProcessor ip = rgb.getStack().getProcessor(i);
+                assertEquals(background, ip.get(5, 5) & 0xffffff);
+                assertEquals(background, ip.get(250, 20) & 0xffffff);
+                assertEquals(background, ip.get(500, 500) & 0xffffff);
+                assertTrue((ip.get(30, 30) & 0xffffff) != background);
+                assertTrue((ip.get(370, 360) & 0xffffff) != background);
+            }
+        }
+
+        ImagePlus[] labels = {s.labels, s.labels.duplicate()};
+        for (Roi cell : cells) {
+            lq.count(labels, lq.proteins, s.raw, cell.getName(), cell, lq.firstC, lq.lastC, lq.classValues(),
+                    lq.minSize, false, false, 0);
+        }
+
+        // Cells, then frames, then pairs
+        assertEquals(8, lq.summary.size());
+        assertEquals("syntheticrect-t:1/2-ch:2/3", lq.summary.getLabel(0));
+        assertEquals("syntheticoval-t:2/2-ch:2/4", lq.summary.getLabel(7));
+        Golden.check("channel_pairs_cells.tsv", Golden.format(lq.summary));
+    }
+
+    @Test
+    public void makeRgb() throws Exception {
+        SyntheticImage s = new SyntheticImage();
+        s.nSlices = 2;
+        s.nFrames = 2;
+        s.objects = 30;
+        s.seed = 8;
+        s.generate();
+        LysoQuant lq = s.analyzer();
+        ImagePlus rgb = lq.make_rgb(s.ch_protein, s.ch_lyso, s.raw, 1, 2, 2, 2);
+
+        assertEquals(ImagePlus.COLOR_RGB, rgb.getType());
+        assertEquals(2, rgb.getStackSize());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= rgb.getStackSize(); i++) {
+            int[] pixels = (int[])rgb.getStack().getProcessor(i).getPixels();
+            CRC32 crc = new CRC32();
+            for (int pixel : pixels) {
+                crc.update(pixel >> 16);
+                crc.update(pixel >> 8);
+                crc.update(pixel);
+            }
+            sb.append(i).append('\t').append(Long.toHexString(crc.getValue())).append('\n');
+        }
+        Golden.check("make_rgb.tsv", sb.toString());
+    }
+
+    @Test
+    public void median() {
+        LysoQuant lq = new LysoQuant();
+        assertTrue(Double.isNaN(lq.getMedian(new ArrayList<Double>())));
+        assertEquals(2.0, lq.getMedian(new ArrayList<Double>(Arrays.asList(3.0, 1.0, 2.0))), 0);
+        assertEquals(2.5, lq.getMedian(new ArrayList<Double>(Arrays.asList(4.0, 1.0, 3.0, 2.0))), 0);
+    }
+}
@@ -0,0 +1,110 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Scanner;
+
+/**
+ * Golden outputs stored in src/test/resources/ch/irb/lysoquant/golden.
+ * Run the tests with -Dlysoquant.golden.update=true to write them again
+ * after an intended change of the results, and review the diff.
+ *
+ * @author Diego Morone
+ */
+class Golden {
+
+    static final String FOLDER = "src/test/resources/ch/irb/lysoquant/golden";
+
+    /**
+     * Compare text with a golden file, or write it in update mode
+     *
+     * @param name of the golden file
+     * @param actual current output
+     */
+    static void check(String name, String actual) throws IOException {
+        if (Boolean.getBoolean("lysoquant.golden.update")) {
+            File file = new File(new File(System.getProperty("basedir", "."), FOLDER), name);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), actual.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        InputStream in = Golden.class.getResourceAsStream("golden/"+name);
+        assertNotNull("missing golden file "+name+", run with -Dlysoquant.golden.update=true", in);
+        Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A");
+        String expected = scanner.hasNext() ? scanner.next() : "";
+        scanner.close();
+        assertEquals("output differs from golden file "+name, expected, actual);
+    }
+
+    /**
+     * All rows and columns of a table, with labels, text values and
+     * numbers with 6 significant digits
+     */
+    static String format(ResultsTable table) {
+        StringBuilder sb = new StringBuilder();
+        String[] headings = table.getHeadings();
+        sb.append(String.join("\t", headings)).append('\n');
+        for (int row = 0; row < table.size(); row++) {
+            for (int i = 0; i < headings.length; i++) {
+                if (i > 0) sb.append('\t');
+                String heading = headings[i];
+                if (heading.equals("Label")) {
+                    sb.append(table.getLabel(row));
+                    continue;
+                }
+                double value = table.getValue(heading, row);
+                if (Double.isNaN(value)) {
+                    String text = table.getStringValue(heading, row);
+                    sb.append(text == null ? "NaN" : text);
+                } else {
+                    sb.append(String.format(Locale.US, "%.6g", value));
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,310 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+import ij.measure.ResultsTable;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Queue workers over a shared temporary folder, in separate processes:
+ * leases, heartbeats, take-over of abandoned leases, draining and merging of
+ * the shards, retry of failed images, outputs of several channel pairs in
+ * the journal, and RoiSets read without a display.
+ *
+ * @author Diego Morone
+ */
+public class LysoQuantQueueTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static final long TIMEOUT = 60*1000;
+    /** lease timeout of the workers started in their own process */
+    static final long LEASE_TIMEOUT = 3000;
+
+    static File[] images(File dir, int n) {
+        for (int i = 0; i < n; i++) {
+            ImagePlus imp = IJ.createImage("image", "8-bit black", 8, 8, 1);
+            IJ.saveAsTiff(imp, new File(dir, String.format("image%02d.tif", i)).getPath());
+        }
+        return LysoQuantBatch.images(dir, ".tif");
+    }
+
+    static void writeLease(File lease, String worker, long age) throws Exception {
+        LysoQuantQueue.mark(lease, worker);
+        lease.setLastModified(System.currentTimeMillis() - age);
+    }
+
+    /**
+     * Start a QueueWorker in its own JVM, on the test class path
+     */
+    static Process start(File indir, File outdir, String worker, File completions, String... options) throws Exception {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        // surefire may run the tests from a manifest-only jar
+        String classpath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+        ArrayList<String> command = new ArrayList<String>(Arrays.asList(java, "-Djava.awt.headless=true",
+                "-cp", classpath, QueueWorker.class.getName(), indir.getPath(), outdir.getPath(), worker,
+                String.valueOf(LEASE_TIMEOUT), completions.getPath()));
+        command.addAll(Arrays.asList(options));
+        return new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(new File(completions.getParentFile(), worker+".log")).start();
+    }
+
+    static QueueWorker worker(File indir, File outdir, String id, File completions) {
+        QueueWorker worker = new QueueWorker();
+        worker.inputFolder = indir.getPath();
+        worker.outputFolder = outdir.getPath();
+        worker.worker = id;
+        worker.leaseTimeout = TIMEOUT;
+        worker.completions = completions;
+        worker.retries = 0;
+        worker.backoff = 0;
+        return worker;
+    }
+
+    @Test
+    public void workersInSeparateProcesses() throws Exception {
+        File indir = tmp.newFolder("input");
+        File outdir = tmp.newFolder("output");
+        File completions = tmp.newFolder("completions");
+        File queue = new File(outdir, LysoQuantQueue.QUEUE);
+        File[] files = images(indir, 16);
+
+        // A worker dies on the first image while holding its lease
+        Process crashed = start(indir, outdir, "crashed", completions, "crash");
+        assertEquals(3, crashed.waitFor());
+        File abandoned = new File(queue, files[0].getName()+LysoQuantQueue.LEASE);
+        assertEquals("crashed", LysoQuantQueue.owner(abandoned));
+
+        // A worker holds image01 for twice the lease timeout: only its heartbeat
+        // keeps the two workers started meanwhile from taking it over. They take
+        // over the abandoned image00 and race for the others.
+        Process slow = start(indir, outdir, "slow", completions, "slow="+files[1].getName());
+        File held = new File(queue, files[1].getName()+LysoQuantQueue.LEASE);
+        while (!held.exists()) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(LEASE_TIMEOUT*3/2);
+        Process[] workers = {start(indir, outdir, "worker0", completions), start(indir, outdir, "worker1", completions)};
+        for (Process worker : workers) {
+            assertEquals(0, worker.waitFor());
+        }
+        assertEquals(0, slow.waitFor());
+
+        assertTrue(LysoQuantQueue.drained(queue, files));
+        for (File file : files) {
+            String[] done = completions.list((dir, name) -> name.startsWith(file.getName()+"."));
+            assertEquals("completions of "+file.getName()+": "+Arrays.toString(done), 1, done.length);
+            assertTrue(new File(queue, file.getName()+LysoQuantQueue.DONE).exists());
+            assertFalse(new File(queue, file.getName()+LysoQuantQueue.LEASE).exists());
+        }
+        assertEquals(0, completions.list((dir, name) -> name.endsWith(".crashed")).length);
+        assertTrue(new File(completions, files[1].getName()+".slow").exists());
+
+        ResultsTable summary = ResultsTable.open(new File(outdir, LysoQuantBatch.SUMMARY).getPath());
+        assertEquals(files.length, summary.size());
+        for (int i = 0; i < files.length; i++) {
+            assertEquals(files[i].getName(), summary.getStringValue("Label", i));
+            assertEquals(i, summary.getValue("Index", i), 0);
+        }
+    }
+
+    @Test
+    public void retryFailed() throws Exception {
+        File indir = tmp.newFolder("input");
+        File outdir = tmp.newFolder("output");
+        File completions = tmp.newFolder("completions");
+        File queue = new File(outdir, LysoQuantQueue.QUEUE);
+        File summary = new File(outdir, LysoQuantBatch.SUMMARY);
+        File[] files = images(indir, 4);
+        String failing = files[2].getName();
+
+        QueueWorker worker = worker(indir, outdir, "a", completions);
+        worker.failing.add(failing);
+        worker.work();
+        assertTrue(new File(queue, failing+LysoQuantQueue.FAILED).exists());
+        assertTrue(LysoQuantQueue.drained(queue, files));
+        assertEquals(files.length-1, ResultsTable.open(summary.getPath()).size());
+
+        // Failed markers are permanent unless asked otherwise
+        worker = worker(indir, outdir, "b", completions);
+        worker.work();
+        assertFalse(new File(completions, failing+".b").exists());
+
+        // Markers written before the worker started are retried, once
+        Thread.sleep(20);
+        worker = worker(indir, outdir, "c", completions);
+        worker.retryFailed = true;
+        worker.work();
+        assertTrue(new File(completions, failing+".c").exists());
+        assertFalse(new File(queue, failing+LysoQuantQueue.FAILED).exists());
+        assertTrue(new File(queue, failing+LysoQuantQueue.DONE).exists());
+        assertEquals(files.length, ResultsTable.open(summary.getPath()).size());
+    }
+
+    @Test
+    public void workerIDs() {
+        assertEquals("node1_gpu", LysoQuantQueue.sanitize("node1 gpu"));
+        assertEquals(".._.._shards", LysoQuantQueue.sanitize("../../shards"));
+        assertEquals("___", LysoQuantQueue.sanitize(".."));
+        assertEquals("_", LysoQuantQueue.sanitize(""));
+        assertEquals("1234@host.example", LysoQuantQueue.sanitize("1234@host.example"));
+    }
+
+    @Test
+    public void leases() throws Exception {
+        File queue = tmp.newFolder("queue");
+        File lease = new File(queue, "image.tif"+LysoQuantQueue.LEASE);
+
+        assertTrue(LysoQuantQueue.acquire(lease, "a", TIMEOUT));
+        assertFalse(LysoQuantQueue.acquire(lease, "b", TIMEOUT));
+        assertEquals("a", LysoQuantQueue.owner(lease));
+
+        lease.setLastModified(System.currentTimeMillis() - 2*TIMEOUT);
+        assertTrue(LysoQuantQueue.acquire(lease, "b", TIMEOUT));
+        assertEquals("b", LysoQuantQueue.owner(lease));
+
+        // Only the owner releases
+        LysoQuantQueue.release(lease, "a");
+        assertTrue(lease.exists());
+        LysoQuantQueue.release(lease, "b");
+        assertFalse(lease.exists());
+    }
+
+    @Test
+    public void giveBackKeepsNewerLease() throws Exception {
+        File queue = tmp.newFolder("queue");
+        File lease = new File(queue, "image.tif"+LysoQuantQueue.LEASE);
+        File stale = new File(queue, "image.tif"+LysoQuantQueue.LEASE+".a.stale");
+
+        // Moved away by mistake, nobody claimed the item since: put back
+        writeLease(stale, "b", 0);
+        assertTrue(LysoQuantQueue.giveBack(stale, lease));
+        assertEquals("b", LysoQuantQueue.owner(lease));
+        assertFalse(stale.exists());
+
+        // A third worker claimed the item in the meantime: its lease is kept
+        lease.delete();
+        writeLease(lease, "c", 0);
+        writeLease(stale, "b", 0);
+        assertFalse(LysoQuantQueue.giveBack(stale, lease));
+        assertEquals("c", LysoQuantQueue.owner(lease));
+        assertFalse(stale.exists());
+    }
+
+    @Test
+    public void pairOutputs() throws Exception {
+        File dir = tmp.newFolder("output");
+        int[] proteins = {3, 4};
+        String[] paths = new String[proteins.length];
+        for (int p = 0; p < proteins.length; p++) {
+            paths[p] = new File(dir, "image"+LysoQuantBatch.pairSuffix(proteins, p)+"_LQ.tif").getPath();
+            IJ.saveAsTiff(IJ.createImage("LQ", "8-bit black", 8, 8, 1), paths[p]);
+        }
+        assertEquals("_ch4", LysoQuantBatch.pairSuffix(proteins, 1));
+        assertEquals("", LysoQuantBatch.pairSuffix(new int[] {3}, 0));
+
+        String recorded = LysoQuantBatch.joinPaths(paths);
+        ImagePlus[] imps = LysoQuantBatch.openOutputs(recorded, 2);
+        assertEquals(2, imps.length);
+        assertEquals(new File(paths[1]).getName(), imps[1].getTitle());
+        LysoQuantBatch.close(imps);
+
+        // Another number of pairs, or a missing output: run the stage again
+        assertNull(LysoQuantBatch.openOutputs(recorded, 1));
+        assertNull(LysoQuantBatch.openOutputs(null, 2));
+        new File(paths[1]).delete();
+        assertNull(LysoQuantBatch.openOutputs(recorded, 2));
+    }
+
+    @Test
+    public void roiSetWithoutDisplay() throws Exception {
+        File dir = tmp.newFolder("input");
+        File file = images(dir, 1)[0];
+        Roi[] rois = {new Roi(0, 0, 4, 4), new OvalRoi(2, 2, 5, 5)};
+        rois[0].setName("cell-b");
+        rois[1].setName("cell-a");
+
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(new File(dir, "image00.zip")));
+        DataOutputStream out = new DataOutputStream(zos);
+        RoiEncoder encoder = new RoiEncoder(out);
+        for (Roi roi : rois) {
+            zos.putNextEntry(new ZipEntry(roi.getName()+".roi"));
+            encoder.write(roi);
+            out.flush();
+        }
+        out.close();
+
+        LysoQuantBatch.Item item = LysoQuantBatch.items(file).get(0);
+        Roi[] cells = LysoQuantBatch.cells(item);
+        assertEquals(2, cells.length);
+        assertEquals("cell-b", LysoQuantBatch.cellID(cells[0]));
+        assertEquals("cell-a", LysoQuantBatch.cellID(cells[1]));
+        assertEquals(Roi.OVAL, cells[1].getType());
+
+        // A single ROI file, used when there is no RoiSet
+        new File(dir, "image00.zip").delete();
+        assertTrue(RoiEncoder.save(rois[1], new File(dir, "image00.roi").getPath()));
+        cells = LysoQuantBatch.cells(item);
+        assertEquals(1, cells.length);
+        assertEquals(Roi.OVAL, cells[0].getType());
+
+        new File(dir, "image00.roi").delete();
+        cells = LysoQuantBatch.cells(item);
+        assertEquals(1, cells.length);
+        assertNull(cells[0]);
+    }
+}
@@ -0,0 +1,121 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+
+package ch.irb.lysoquant;
+
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Queue worker whose processing of an image is replaced by writing its
+ * summary row: leases, heartbeats, markers and merging are those of
+ * LysoQuantQueue.work. Run in its own JVM by LysoQuantQueueTest, so that
+ * workers race like separate processes on a shared folder.
+ *
+ * @author Diego Morone
+ */
+class QueueWorker extends LysoQuantQueue {
+
+    /** folder where each processed image leaves a file image.worker */
+    File completions;
+    /** images whose processing fails */
+    Set<String> failing = new HashSet<String>();
+    /** image whose processing lasts twice the lease timeout */
+    String slow;
+    /** halt the JVM while processing the first image, holding its lease */
+    boolean crash;
+
+    @Override
+    LysoQuantBatch newBatch() {
+        return new LysoQuantBatch() {
+            @Override
+            void process(Item item, File outdir) throws Exception {
+                if (crash)
+                    Runtime.getRuntime().halt(3);
+                if (failing.contains(item.name))
+                    throw new StageException(Journal.SEGMENT, "failing on purpose");
+                if (item.name.equals(slow))
+                    Thread.sleep(leaseTimeout*2);
+
+                ResultsTable rt = new ResultsTable();
+                rt.incrementCounter();
+                rt.addLabel(item.name);
+                rt.addValue("Index", Integer.parseInt(item.base.replaceAll("\\D", "")));
+                String csvpath = new File(outdir, item.base+"_0000-0000.csv").getPath();
+                if (!rt.save(csvpath))
+                    throw new StageException(Journal.COUNT, "cannot save "+csvpath);
+                checkAbort(Journal.COUNT);
+                if (!new File(completions, item.name+"."+worker).createNewFile())
+                    throw new IOException("processed twice by "+worker);
+                journal.done(item.name, "0000-0000", Journal.COUNT, csvpath);
+            }
+        };
+    }
+
+    /**
+     * @param args input folder, output folder, worker ID, lease timeout (ms),
+     * completions folder, then optional "crash", "slow=image" or "fail=image,image"
+     */
+    public static void main(String[] args) {
+        QueueWorker queue = new QueueWorker();
+        queue.inputFolder = args[0];
+        queue.outputFolder = args[1];
+        queue.worker = sanitize(args[2]);
+        queue.leaseTimeout = Long.parseLong(args[3]);
+        queue.completions = new File(args[4]);
+        queue.retries = 0;
+        queue.backoff = 0;
+        for (int i = 5; i < args.length; i++) {
+            if (args[i].equals("crash"))
+                queue.crash = true;
+            else if (args[i].startsWith("slow="))
+                queue.slow = args[i].substring(5);
+            else if (args[i].startsWith("fail="))
+                queue.failing.addAll(Arrays.asList(args[i].substring(5).split(",")));
+        }
+        try {
+            queue.work();
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,278 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.macro.Interpreter;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Adaptive test-time augmentation with a threshold stand-in for U-Net, on
+ * segmentations at the resolution of the input and rescaled from it, as
+ * U-Net does when the pixel size differs from the element size of the model,
+ * and through LysoQuant.unet with an input flushed by U-Net.
+ *
+ * @author Diego Morone
+ */
+public class TestTimeAugmentationTest {
+
+    static final int TILE = 32;
+
+    /**
+     * Stand-in for U-Net: labels by threshold, resized by a fixed factor
+     * with nearest neighbour sampling
+     */
+    static ImageStack threshold(ImageStack input, double scale) {
+        int width = (int) Math.round(input.getWidth() * scale);
+        int height = (int) Math.round(input.getHeight() * scale);
+        ImageStack output = new ImageStack(width, height);
+        for (int n = 1; n <= input.getSize(); n++) {
+            ImageProcessor in = input.getProcessor(n);
+            ByteProcessor out = new ByteProcessor(width, height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int v = in.get((int) ((x + 0.5) / scale), (int) ((y + 0.5) / scale));
+                    out.set(x, y, v > 150 ? 2 : v > 50 ? 1 : 0);
+                }
+            }
+            output.addSlice(out);
+        }
+        return output;
+    }
+
+    static class StandIn extends TestTimeAugmentation {
+        final double scale;
+        int crops;
+
+        StandIn(LysoQuant lq, double scale) {
+            super(lq);
+            this.scale = scale;
+        }
+
+        @Override
+        ImagePlus segment(ImagePlus cropped) {
+            crops += cropped.getStackSize();
+            return new ImagePlus("refined", threshold(cropped.getStack(), scale));
+        }
+    }
+
+    /**
+     * Stand-in for the U-Net job, through LysoQuant.unet: the first pass
+     * labels every Loaded object Empty with low confidence, the mirrored
+     * pass thresholds. Like U-Net, outputs are new images and the input is
+     * closed and flushed, as when it is shown.
+     */
+    static class FlushingUnet extends LysoQuant {
+        @Override
+        void processHyperStack(ImagePlus input, String parameters) {
+            ImageStack labels = threshold(input.getStack(), 1.0);
+            if (Boolean.parseBoolean(outputsoftmaxscores)) {
+                ImageStack scores = new ImageStack(labels.getWidth(), labels.getHeight());
+                for (int n = 1; n <= labels.getSize(); n++) {
+                    labels.getProcessor(n).max(1);
+                    for (float p : new float[] {0.4f, 0.35f, 0.25f}) {
+                        FloatProcessor fp = new FloatProcessor(labels.getWidth(), labels.getHeight());
+                        fp.set(p);
+                        scores.addSlice(fp);
+                    }
+                }
+                new ImagePlus(input.getTitle()+" (softmax)", scores).show();
+            }
+            new ImagePlus(input.getTitle()+SEGMENTATION, labels).show();
+            input.close();
+            input.flush();
+        }
+    }
+
+    /**
+     * Input with Empty (100) and Loaded (200) squares aligned on even
+     * pixels, so that both resizings sample the same objects
+     */
+    static ImagePlus input(int width, int height, int nPlanes) {
+        Random random = new Random(7);
+        ImageStack stack = new ImageStack(width, height);
+        for (int n = 0; n < nPlanes; n++) {
+            ByteProcessor ip = new ByteProcessor(width, height);
+            for (int k = 0; k < 40; k++) {
+                int x = 2 * random.nextInt(width/2 - 4);
+                int y = 2 * random.nextInt(height/2 - 4);
+                ip.setValue(random.nextBoolean() ? 100 : 200);
+                ip.setRoi(x, y, 6, 6);
+                ip.fill();
+            }
+            ip.resetRoi();
+            stack.addSlice(ip);
+        }
+        return new ImagePlus("rgb", stack);
+    }
+
+    void refine(double scale) throws Exception {
+        ImagePlus rgb = input(200, 160, 2);
+        ImageStack expected = threshold(rgb.getStack(), scale);
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+
+        // Single pass: every Loaded object labelled Empty, with low confidence
+        ImageStack labels = new ImageStack(width, height);
+        ImageStack scores = new ImageStack(width, height);
+        for (int n = 1; n <= expected.getSize(); n++) {
+            ImageProcessor ip = expected.getProcessor(n).duplicate();
+            ip.max(1);
+            labels.addSlice(ip);
+            for (float p : new float[] {0.4f, 0.35f, 0.25f}) {
+                FloatProcessor fp = new FloatProcessor(width, height);
+                fp.set(p);
+                scores.addSlice(fp);
+            }
+        }
+        ImagePlus segmented = new ImagePlus("LQ_rgb", labels);
+        ImagePlus softmax = new ImagePlus("LQ_rgb (softmax)", scores);
+
+        LysoQuant lq = new LysoQuant();
+        lq.tilesize = String.valueOf(TILE);
+        lq.confidence = 0.7;
+        StandIn tta = new StandIn(lq, scale);
+        assertTrue(tta.refine(rgb, segmented, softmax));
+
+        assertTrue(tta.nRefined > 0);
+        assertEquals(tta.nRefined, tta.crops);
+        for (int n = 1; n <= expected.getSize(); n++) {
+            assertArrayEquals("plane "+n, (byte[]) expected.getPixels(n), (byte[]) segmented.getStack().getPixels(n));
+        }
+    }
+
+    @Test
+    public void inputFlushedByUnet() throws Exception {
+        ImagePlus rgb = input(200, 160, 2);
+        ImageStack expected = threshold(rgb.getStack(), 1.0);
+
+        LysoQuant lq = new FlushingUnet();
+        lq.augment = TestTimeAugmentation.ADAPTIVE;
+        lq.tilesize = String.valueOf(TILE);
+        lq.confidence = 0.7;
+        boolean batchMode = Interpreter.isBatchMode();
+        Interpreter.batchMode = true; // new images are found without display
+        ImagePlus segmented;
+        try {
+            segmented = lq.unet(rgb, "rgb");
+        } finally {
+            Interpreter.batchMode = batchMode;
+        }
+
+        assertNull("input not flushed", rgb.getProcessor());
+        assertNotNull(segmented);
+        for (int n = 1; n <= expected.getSize(); n++) {
+            assertArrayEquals("plane "+n, (byte[]) expected.getPixels(n), (byte[]) segmented.getStack().getPixels(n));
+        }
+        segmented.close();
+    }
+
+    @Test
+    public void missedObjects() throws Exception {
+        ImagePlus rgb = input(200, 160, 2);
+        ImageStack expected = threshold(rgb.getStack(), 1.0);
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+
+        // Single pass: every object missed, background argmax with low confidence
+        // on the objects only
+        ImageStack labels = new ImageStack(width, height);
+        ImageStack scores = new ImageStack(width, height);
+        int tilesWithObjects = 0;
+        for (int n = 1; n <= expected.getSize(); n++) {
+            ImageProcessor ip = expected.getProcessor(n);
+            labels.addSlice(new ByteProcessor(width, height));
+            float[][] p = new float[3][width*height];
+            for (int i = 0; i < width*height; i++) {
+                boolean object = ip.get(i) != 0;
+                p[0][i] = object ? 0.4f : 0.9f;
+                p[1][i] = object ? 0.35f : 0.05f;
+                p[2][i] = object ? 0.25f : 0.05f;
+            }
+            for (float[] c : p) {
+                scores.addSlice(new FloatProcessor(width, height, c));
+            }
+            for (int y = 0; y < height; y += TILE) {
+                for (int x = 0; x < width; x += TILE) {
+                    ip.setRoi(x, y, TILE, TILE);
+                    if (ip.getStats().max > 0) tilesWithObjects++;
+                }
+            }
+            ip.resetRoi();
+        }
+        ImagePlus segmented = new ImagePlus("LQ_rgb", labels);
+        ImagePlus softmax = new ImagePlus("LQ_rgb (softmax)", scores);
+
+        LysoQuant lq = new LysoQuant();
+        lq.tilesize = String.valueOf(TILE);
+        lq.confidence = 0.7;
+        StandIn tta = new StandIn(lq, 1.0);
+        assertTrue(tta.refine(rgb, segmented, softmax));
+
+        assertEquals(tilesWithObjects, tta.nRefined);
+        assertTrue(tta.nRefined < tta.nTiles);
+        for (int n = 1; n <= expected.getSize(); n++) {
+            assertArrayEquals("plane "+n, (byte[]) expected.getPixels(n), (byte[]) segmented.getStack().getPixels(n));
+        }
+    }
+
+    @Test
+    public void sameResolution() throws Exception {
+        refine(1.0);
+    }
+
+    @Test
+    public void upsampled() throws Exception {
+        refine(2.0);
+    }
+
+    @Test
+    public void downsampled() throws Exception {
+        refine(0.5);
+    }
+}
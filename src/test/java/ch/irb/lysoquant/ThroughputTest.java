@@ -0,0 +1,146 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+package ch.irb.lysoquant;
+
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * Minimum throughput of the stages that do not need U-Net, on synthetic
+ * images. Budgets are well below what a laptop reaches, to catch large
+ * regressions only; scale them with -Dlysoquant.budget.scale (e.g. 0.5
+ * on a slow build machine). Each stage is warmed up, and the best of a
+ * few runs is compared with its budget.
+ *
+ * @author Diego Morone
+ */
+public class ThroughputTest {
+
+    static final double PREPROCESS_PIXELS = 5e6; // per second
+    static final double COUNT_OBJECTS = 2000; // per second, label only
+    static final double MEASURE_OBJECTS = 200; // per second, with single values and cargo area
+    static final double SUMMARY_ROWS = 5000; // per second
+    static final int RUNS = 3;
+
+    static double budget(double value) {
+        return value * Double.parseDouble(System.getProperty("lysoquant.budget.scale", "1"));
+    }
+
+    static SyntheticImage image() {
+        SyntheticImage s = new SyntheticImage();
+        s.width = 1024;
+        s.height = 1024;
+        s.nSlices = 2;
+        s.nFrames = 2;
+        s.objects = 400;
+        return s.generate();
+    }
+
+    @Test
+    public void makeRgb() {
+        SyntheticImage s = image();
+        LysoQuant lq = s.analyzer();
+        lq.make_rgb(s.ch_protein, s.ch_lyso, s.raw, 1, s.nSlices, 1, s.nFrames);
+
+        double best = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            ImagePlus rgb = lq.make_rgb(s.ch_protein, s.ch_lyso, s.raw, 1, s.nSlices, 1, s.nFrames);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            best = Math.max(best, (double)rgb.getWidth()*rgb.getHeight()*rgb.getStackSize() / seconds);
+        }
+        assertTrue("make_rgb: "+(long)best+" pixels/s", best >= budget(PREPROCESS_PIXELS));
+    }
+
+    @Test
+    public void count() {
+        SyntheticImage s = image();
+        assertTrue("label: "+(long)objectsPerSecond(s, false)+" objects/s",
+                objectsPerSecond(s, false) >= budget(COUNT_OBJECTS));
+    }
+
+    @Test
+    public void measure() {
+        SyntheticImage s = image();
+        s.objects = 100;
+        s.generate();
+        assertTrue("measure: "+(long)objectsPerSecond(s, true)+" objects/s",
+                objectsPerSecond(s, true) >= budget(MEASURE_OBJECTS));
+    }
+
+    static double objectsPerSecond(SyntheticImage s, boolean measure) {
+        int objects = 0;
+        for (int[] plane : s.counts) {
+            objects += plane[0] + plane[1];
+        }
+        LysoQuant lq = s.analyzer();
+        CountRegressionTest.count(lq, s.labels, s.raw, "0000-0000", null, measure, measure, 1000);
+
+        double best = 0;
+        for (int i = 0; i < RUNS; i++) {
+            lq.summary = new ResultsTable();
+            long start = System.nanoTime();
+            CountRegressionTest.count(lq, s.labels, s.raw, "0000-0000", null, measure, measure, 1000);
+            best = Math.max(best, objects / ((System.nanoTime() - start) / 1e9));
+        }
+        return best;
+    }
+
+    @Test
+    public void summary() {
+        SyntheticImage s = new SyntheticImage();
+        LysoQuant lq = s.analyzer();
+        HashMap<Integer, String> values = lq.classValues();
+        int rows = 2000;
+
+        double best = 0;
+        for (int i = 0; i <= RUNS; i++) {
+            lq.summary = new ResultsTable();
+            long start = System.nanoTime();
+            for (int row = 0; row < rows; row++) {
+                lq.updateSummary("synthetic-t:"+row, values, new int[] {row, 2*row}, 0.5);
+            }
+            if (i > 0) // first run is warm-up
+                best = Math.max(best, rows / ((System.nanoTime() - start) / 1e9));
+        }
+        assertTrue("summary: "+(long)best+" rows/s", best >= budget(SUMMARY_ROWS));
+    }
+}
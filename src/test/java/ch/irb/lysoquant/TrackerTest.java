@@ -0,0 +1,165 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2020 Diego Morone
+ *
+ *        Imaging Facility and Molinari Lab,
+ *	  Institute for Research in Biomedicine
+ *	  Switzerland
+ *
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+
+
+package ch.irb.lysoquant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+import ij.process.ByteProcessor;
+
+import org.junit.Test;
+
+/**
+ * Frame to frame linking on hand-drawn label images: by overlap only, by
+ * distance only, and the time of the Empty to Loaded transition.
+ *
+ * @author Diego Morone
+ */
+public class TrackerTest {
+
+    static final int WIDTH = 200;
+    static final int HEIGHT = 120;
+
+    /**
+     * Label time-lapse, one slice, with the given rectangles {frame, class, x, y, width, height}
+     */
+    static ImagePlus labels(int nFrames, int[]... objects) {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int t = 1; t <= nFrames; t++) {
+            ByteProcessor ip = new ByteProcessor(WIDTH, HEIGHT);
+            for (int[] o : objects) {
+                if (o[0] != t) continue;
+                ip.setValue(o[1]);
+                ip.setRoi(o[2], o[3], o[4], o[5]);
+                ip.fill();
+            }
+            ip.resetRoi();
+            stack.addSlice(ip);
+        }
+        ImagePlus imp = new ImagePlus("LQ_tracks", stack);
+        imp.setDimensions(1, 1, nFrames);
+        imp.setOpenAsHyperStack(true);
+        return imp;
+    }
+
+    static Tracker track(ImagePlus segmented, double maxDistance, double frameInterval) {
+        int nFrames = segmented.getNFrames();
+        ImagePlus raw = new ImagePlus("tracks", segmented.getStack().duplicate());
+        raw.setDimensions(1, 1, nFrames);
+        raw.getCalibration().frameInterval = frameInterval;
+
+        LysoQuant lq = new LysoQuant();
+        lq.interactive = false;
+        lq.nChannels = 1;
+        lq.nSlices = 1;
+        lq.nFrames = nFrames;
+        lq.firstC = lq.lastC = 1;
+        lq.firstZ = lq.lastZ = 1;
+        lq.firstT = 1;
+        lq.lastT = nFrames;
+        lq.minSize = 0;
+        lq.trackDistance = maxDistance;
+
+        Tracker tracker = new Tracker(lq, segmented, raw, "0000-0000", null, 1);
+        tracker.run();
+        return tracker;
+    }
+
+    static Tracker.Spot spot(Tracker tracker, int frame, int x) {
+        for (Tracker.Spot spot : tracker.spots) {
+            if (spot.frame == frame && spot.bounds.x == x)
+                return spot;
+        }
+        throw new AssertionError("no spot at x="+x+" in frame "+frame);
+    }
+
+    @Test
+    public void overlapOnly() {
+        // A large lysosome moving by 40 px, ten times the maximum displacement
+        ImagePlus segmented = labels(2,
+                new int[] {1, 1, 20, 20, 60, 60},
+                new int[] {2, 1, 60, 20, 60, 60});
+        Tracker tracker = track(segmented, 4, 0);
+        assertEquals(1, tracker.nTracks);
+        assertEquals(spot(tracker, 1, 20), spot(tracker, 2, 60).previous);
+    }
+
+    @Test
+    public void distanceOnly() {
+        // Small lysosomes moving without overlap, within and beyond the maximum displacement
+        ImagePlus segmented = labels(2,
+                new int[] {1, 1, 20, 20, 3, 3},
+                new int[] {2, 1, 24, 20, 3, 3},
+                new int[] {1, 2, 100, 60, 3, 3},
+                new int[] {2, 2, 110, 60, 3, 3});
+        Tracker tracker = track(segmented, 5, 0);
+        assertEquals(3, tracker.nTracks);
+        assertEquals(spot(tracker, 1, 20).track, spot(tracker, 2, 24).track);
+        assertNotEquals(spot(tracker, 1, 100).track, spot(tracker, 2, 110).track);
+    }
+
+    @Test
+    public void emptyToLoaded() {
+        // Appears Empty in frame 2, Loaded from frame 4, 2 s per frame
+        ImagePlus segmented = labels(5,
+                new int[] {2, 1, 50, 50, 6, 6},
+                new int[] {3, 1, 51, 50, 6, 6},
+                new int[] {4, 2, 52, 50, 6, 6},
+                new int[] {5, 2, 53, 50, 6, 6});
+        Tracker tracker = track(segmented, 3, 2);
+        assertEquals(1, tracker.nTracks);
+
+        ResultsTable tracks = new ResultsTable();
+        tracker.addTracks(tracks);
+        assertEquals(1, tracks.size());
+        assertEquals(2, tracks.getValue("First Frame", 0), 0);
+        assertEquals(4, tracks.getValue("Frames", 0), 0);
+        assertEquals("Empty", tracks.getStringValue("First Type", 0));
+        assertEquals("Loaded", tracks.getStringValue("Last Type", 0));
+        assertEquals(4, tracks.getValue("Empty>Loaded Frame", 0), 0);
+        assertEquals(4, tracks.getValue("Empty>Loaded Time from Track Start (sec)", 0), 1e-9);
+
+        // Spot times are counted from the first frame of the image
+        ResultsTable spots = new ResultsTable();
+        tracker.addSpots(spots);
+        assertEquals(4, spots.size());
+        assertEquals(4, spots.getValue("Frame", 2), 0);
+        assertEquals(6, spots.getValue("Time (sec)", 2), 1e-9);
+    }
+}